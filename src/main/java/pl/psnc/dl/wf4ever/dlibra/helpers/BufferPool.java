@@ -0,0 +1,193 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of copy buffers in a few size classes, shared by the threads uploading and downloading files.
+ * 
+ * The buffer used for a copy is the smallest one that holds the whole file, up to the largest size class, so that
+ * small files don't take large buffers and large files are written to dLibra in large blocks. Streams of unknown size
+ * are copied with a buffer for {@value #UNKNOWN_SIZE} bytes. Each size class keeps a limited number of free buffers;
+ * buffers returned above that limit are left to the garbage collector.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class BufferPool {
+
+    /** Default buffer sizes. */
+    public static final int[] DEFAULT_SIZES = { 8 * 1024, 64 * 1024, 512 * 1024 };
+
+    /** Default number of free buffers kept per size class. */
+    public static final int DEFAULT_MAX_FREE = 16;
+
+    /** Size for which the buffer is chosen when the size of a stream is not known. */
+    public static final int UNKNOWN_SIZE = 64 * 1024;
+
+    /** Buffer sizes, ascending. */
+    private final int[] sizes;
+
+    /** Free buffers of each size. */
+    private final Queue<byte[]>[] free;
+
+    /** Number of free buffers of each size. */
+    private final AtomicInteger[] freeCounts;
+
+    /** Maximum number of free buffers kept per size class. */
+    private final int maxFree;
+
+    /** Number of buffers allocated. */
+    private final AtomicLong allocated = new AtomicLong();
+
+    /** Number of buffers reused. */
+    private final AtomicLong reused = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param sizes
+     *            buffer sizes, ascending
+     * @param maxFree
+     *            maximum number of free buffers kept per size class
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int[] sizes, int maxFree) {
+        if (sizes.length == 0) {
+            throw new IllegalArgumentException("No buffer sizes");
+        }
+        this.sizes = sizes.clone();
+        this.maxFree = maxFree;
+        this.free = new Queue[sizes.length];
+        this.freeCounts = new AtomicInteger[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0 && sizes[i] <= sizes[i - 1]) {
+                throw new IllegalArgumentException("Buffer sizes must be ascending");
+            }
+            free[i] = new ConcurrentLinkedQueue<byte[]>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public BufferPool() {
+        this(DEFAULT_SIZES, DEFAULT_MAX_FREE);
+    }
+
+
+    /**
+     * Take a buffer suitable for copying a file of the given size.
+     * 
+     * @param expectedSize
+     *            file size or -1 if not known, in which case a buffer for {@value #UNKNOWN_SIZE} bytes is returned
+     * @return a buffer, which should be returned with {@link #release(byte[])}
+     */
+    public byte[] acquire(long expectedSize) {
+        int sizeClass = getSizeClass(expectedSize);
+        byte[] buffer = free[sizeClass].poll();
+        if (buffer != null) {
+            freeCounts[sizeClass].decrementAndGet();
+            reused.incrementAndGet();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return new byte[sizes[sizeClass]];
+    }
+
+
+    /**
+     * Return a buffer to the pool.
+     * 
+     * @param buffer
+     *            a buffer taken with {@link #acquire(long)}
+     */
+    public void release(byte[] buffer) {
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] == buffer.length) {
+                if (freeCounts[i].incrementAndGet() <= maxFree) {
+                    free[i].offer(buffer);
+                } else {
+                    freeCounts[i].decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+
+    private int getSizeClass(long expectedSize) {
+        if (expectedSize < 0) {
+            expectedSize = UNKNOWN_SIZE;
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            if (expectedSize <= sizes[i]) {
+                return i;
+            }
+        }
+        return sizes.length - 1;
+    }
+
+
+    /**
+     * Copy a stream using a pooled buffer. If the size is known, the buffer is filled as much as possible before each
+     * write, so that the output stream receives large blocks even if the input stream returns data in small chunks.
+     * If it is not known, the data is written after each read, like {@link org.apache.commons.io.IOUtils#copy}, so
+     * that a slow input stream does not delay the output. Neither stream is closed.
+     * 
+     * @param in
+     *            input stream
+     * @param out
+     *            output stream
+     * @param expectedSize
+     *            number of bytes expected or -1 if not known
+     * @return number of bytes copied
+     * @throws IOException
+     *             when reading or writing failed
+     */
+    public long copy(InputStream in, OutputStream out, long expectedSize)
+            throws IOException {
+        byte[] buffer = acquire(expectedSize);
+        try {
+            long count = 0;
+            boolean eof = false;
+            while (!eof) {
+                int filled = 0;
+                while (filled < buffer.length && (filled == 0 || expectedSize >= 0)) {
+                    int n = in.read(buffer, filled, buffer.length - filled);
+                    if (n == -1) {
+                        eof = true;
+                        break;
+                    }
+                    filled += n;
+                }
+                if (filled > 0) {
+                    out.write(buffer, 0, filled);
+                    count += filled;
+                }
+            }
+            return count;
+        } finally {
+            release(buffer);
+        }
+    }
+
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+}
@@ -0,0 +1,338 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pipe connecting one writing thread with one reading thread, used instead of
+ * {@link java.io.PipedInputStream}.
+ * 
+ * The data is kept in a ring buffer of a fixed capacity. Whole blocks are copied in and out of the buffer and the other
+ * side is woken up as soon as there is data or free space, instead of polling every second like the piped streams do.
+ * Closing the input stream makes pending and future writes fail, so that the writer can stop when the reader has gone.
+ * A reader that abandons the input stream without closing it is detected like in {@link java.io.PipedInputStream}: a
+ * waiting writer fails if the last reading thread has died, or if nothing has been read for the write timeout.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class BytePipe {
+
+    /** Default capacity in bytes. */
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    /** Default time a writer waits for the reader to free space, in milliseconds. */
+    public static final long DEFAULT_WRITE_TIMEOUT = 5 * 60 * 1000;
+
+    /** How often a waiting writer checks if the reading thread is alive, in milliseconds. */
+    private static final long READER_CHECK_INTERVAL = 1000;
+
+    /** Ring buffer. */
+    private final byte[] buffer;
+
+    /** Position of the first byte to read. */
+    private int readPosition = 0;
+
+    /** Number of bytes in the buffer. */
+    private int count = 0;
+
+    /** Has the writer closed the pipe. */
+    private boolean writerClosed = false;
+
+    /** Has the reader closed the pipe. */
+    private boolean readerClosed = false;
+
+    /** The thread that read from the pipe last, null if nothing has been read. */
+    private Thread readerThread = null;
+
+    /** Time a writer waits for the reader to free space, in milliseconds. */
+    private final long writeTimeout;
+
+    /** Guards all fields. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when data is written or the writer closes the pipe. */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Signalled when data is read or the reader closes the pipe. */
+    private final Condition notFull = lock.newCondition();
+
+    /** The reading end. */
+    private final InputStream inputStream = new PipeInputStream();
+
+    /** The writing end. */
+    private final OutputStream outputStream = new PipeOutputStream();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            buffer size in bytes
+     * @param writeTimeout
+     *            time a writer waits for the reader to free space before failing, in milliseconds
+     */
+    public BytePipe(int capacity, long writeTimeout) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Pipe capacity must be positive");
+        }
+        this.buffer = new byte[capacity];
+        this.writeTimeout = writeTimeout;
+    }
+
+
+    /**
+     * Constructor with the default write timeout.
+     * 
+     * @param capacity
+     *            buffer size in bytes
+     */
+    public BytePipe(int capacity) {
+        this(capacity, DEFAULT_WRITE_TIMEOUT);
+    }
+
+
+    /**
+     * Constructor of a pipe with the default capacity.
+     */
+    public BytePipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+
+    /**
+     * Copy data into the buffer, waiting for free space.
+     * 
+     * @param b
+     *            data
+     * @param off
+     *            offset in data
+     * @param len
+     *            number of bytes to write
+     * @throws IOException
+     *             if the pipe is closed, the reader has gone or the thread is interrupted
+     */
+    private void write(byte[] b, int off, int len)
+            throws IOException {
+        lock.lock();
+        try {
+            while (len > 0) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+                while (count == buffer.length && !readerClosed && !writerClosed) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || (readerThread != null && !readerThread.isAlive())) {
+                        abandon();
+                        throw new IOException(left <= 0 ? "Pipe not read for " + writeTimeout + " ms"
+                                : "Pipe reader thread is dead");
+                    }
+                    notFull.await(Math.min(left, TimeUnit.MILLISECONDS.toNanos(READER_CHECK_INTERVAL)),
+                        TimeUnit.NANOSECONDS);
+                }
+                if (writerClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (readerClosed) {
+                    throw new IOException("Pipe closed by the reader");
+                }
+                int writePosition = (readPosition + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePosition));
+                System.arraycopy(b, off, buffer, writePosition, n);
+                count += n;
+                off += n;
+                len -= n;
+                notEmpty.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to the pipe");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Copy data out of the buffer, waiting for any data to be available.
+     * 
+     * @param b
+     *            destination
+     * @param off
+     *            offset in destination
+     * @param len
+     *            maximum number of bytes to read
+     * @return number of bytes read or -1 if the writer has closed the pipe and there is no more data
+     * @throws IOException
+     *             if the pipe is closed by the reader or the thread is interrupted
+     */
+    private int read(byte[] b, int off, int len)
+            throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            readerThread = Thread.currentThread();
+            while (count == 0 && !writerClosed && !readerClosed) {
+                notEmpty.await();
+            }
+            if (readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int read = 0;
+            while (read < len && count > 0) {
+                int n = Math.min(len - read, Math.min(count, buffer.length - readPosition));
+                System.arraycopy(buffer, readPosition, b, off + read, n);
+                readPosition = (readPosition + n) % buffer.length;
+                count -= n;
+                read += n;
+            }
+            notFull.signal();
+            return read;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from the pipe");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void closeWriter() {
+        lock.lock();
+        try {
+            writerClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void closeReader() {
+        lock.lock();
+        try {
+            abandon();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Close the pipe on behalf of the reader, so that all following writes fail immediately. Must be called with the
+     * lock held.
+     */
+    private void abandon() {
+        readerClosed = true;
+        count = 0;
+        notFull.signalAll();
+        notEmpty.signalAll();
+    }
+
+
+    /**
+     * The reading end of the pipe.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private class PipeInputStream extends InputStream {
+
+        /** Buffer for reading single bytes, used only by the reading thread. */
+        private final byte[] singleByte = new byte[1];
+
+
+        @Override
+        public int read()
+                throws IOException {
+            int n = BytePipe.this.read(singleByte, 0, 1);
+            return n == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException {
+            return BytePipe.this.read(b, off, len);
+        }
+
+
+        @Override
+        public int available()
+                throws IOException {
+            return BytePipe.this.available();
+        }
+
+
+        @Override
+        public void close()
+                throws IOException {
+            closeReader();
+        }
+    }
+
+
+    /**
+     * The writing end of the pipe.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private class PipeOutputStream extends OutputStream {
+
+        /** Buffer for writing single bytes, used only by the writing thread. */
+        private final byte[] singleByte = new byte[1];
+
+
+        @Override
+        public void write(int b)
+                throws IOException {
+            singleByte[0] = (byte) b;
+            BytePipe.this.write(singleByte, 0, 1);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException {
+            BytePipe.this.write(b, off, len);
+        }
+
+
+        @Override
+        public void close()
+                throws IOException {
+            closeWriter();
+        }
+    }
+
+}
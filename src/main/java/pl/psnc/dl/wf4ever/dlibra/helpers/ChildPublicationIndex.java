@@ -0,0 +1,188 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.metadata.PublicationId;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * A size-bounded, in-memory index of the child publications of group publications by label, so that finding an RO in
+ * a workspace or a version in an RO does not need to list all children of the group over RMI.
+ * 
+ * The children of a group are loaded in bulk on the first lookup. The index is then updated with
+ * {@link #add(PublicationId, String, PublicationId)} and {@link #remove(PublicationId)} when publications are created
+ * or deleted. If a group has many children with the same label, the first one listed is indexed. Publications created
+ * by another instance are not added, so the groups expire and are listed again after a while. That bounds the time in
+ * which such an RO is not found and its group publication could be created again.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ChildPublicationIndex {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ChildPublicationIndex.class);
+
+    /** Default maximum number of child publications kept in the index, summed over all groups. */
+    public static final long DEFAULT_MAX_CHILDREN = 100000;
+
+    /** Default time after which a group is listed again, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = 10 * 60 * 1000;
+
+    /** Group publication id -> child label -> child publication id. */
+    private final StampedCache<Long, ConcurrentMap<String, PublicationId>> groups;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxChildren
+     *            maximum number of child publications kept in the index, summed over all groups, counted when a group
+     *            is loaded
+     * @param expiry
+     *            time after which a group is listed again, in milliseconds
+     */
+    public ChildPublicationIndex(long maxChildren, long expiry) {
+        Cache<Long, ConcurrentMap<String, PublicationId>> cache = CacheBuilder.newBuilder().maximumWeight(maxChildren)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).weigher(new Weigher<Long, ConcurrentMap<String, PublicationId>>() {
+
+                    @Override
+                    public int weigh(Long key, ConcurrentMap<String, PublicationId> value) {
+                        return Math.max(1, value.size());
+                    }
+                }).build();
+        groups = new StampedCache<Long, ConcurrentMap<String, PublicationId>>(cache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public ChildPublicationIndex() {
+        this(DEFAULT_MAX_CHILDREN, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Return the children of a group if they are indexed.
+     * 
+     * @param groupId
+     *            group publication id
+     * @return child labels mapped to child publication ids, or null
+     */
+    public Map<String, PublicationId> get(PublicationId groupId) {
+        return groups.get(groupId.getId());
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(PublicationId, Map, long)} before starting to list the children of a
+     * group.
+     * 
+     * @param groupId
+     *            group publication id
+     * @return the current modification stamp of the group
+     */
+    public long getStamp(PublicationId groupId) {
+        return groups.getStamp(groupId.getId());
+    }
+
+
+    /**
+     * Store the children of a group, unless a publication has been created in it or any publication has been deleted
+     * since the stamp was taken.
+     * 
+     * @param groupId
+     *            group publication id
+     * @param children
+     *            child labels mapped to child publication ids
+     * @param stamp
+     *            value of {@link #getStamp(PublicationId)} taken before the children were listed
+     * @return the children
+     */
+    public Map<String, PublicationId> put(PublicationId groupId, Map<String, PublicationId> children, long stamp) {
+        ConcurrentMap<String, PublicationId> copy = new ConcurrentHashMap<String, PublicationId>(children);
+        if (!groups.put(groupId.getId(), copy, stamp)) {
+            LOG.debug(String.format("Group %s was modified while being listed, not caching", groupId.getId()));
+        }
+        return copy;
+    }
+
+
+    /**
+     * Record that a publication has been created in a group.
+     * 
+     * @param groupId
+     *            group publication id
+     * @param label
+     *            child label
+     * @param childId
+     *            child publication id
+     */
+    public void add(PublicationId groupId, String label, PublicationId childId) {
+        groups.touch(groupId.getId());
+        ConcurrentMap<String, PublicationId> children = groups.peek(groupId.getId());
+        if (children != null) {
+            children.putIfAbsent(label, childId);
+        }
+    }
+
+
+    /**
+     * Record that a publication has been deleted. It is removed from its group and, if it is a group, its children are
+     * removed from the index.
+     * 
+     * @param publicationId
+     *            publication id
+     */
+    public void remove(PublicationId publicationId) {
+        // the group of the publication is not known, so the listings of all groups are discarded
+        groups.touchAll();
+        groups.invalidate(publicationId.getId());
+        for (ConcurrentMap<String, PublicationId> children : groups.asMap().values()) {
+            for (Iterator<PublicationId> it = children.values().iterator(); it.hasNext();) {
+                if (it.next().getId().equals(publicationId.getId())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Remove all groups from the index.
+     */
+    public void invalidateAll() {
+        groups.invalidateAll();
+    }
+
+
+    public long getHitCount() {
+        return groups.getHitCount();
+    }
+
+
+    public long getMissCount() {
+        return groups.getMissCount();
+    }
+
+
+    /**
+     * Return the number of groups currently indexed.
+     * 
+     * @return number of groups
+     */
+    public long size() {
+        return groups.size();
+    }
+
+}
@@ -2,12 +2,25 @@ package pl.psnc.dl.wf4ever.dlibra.helpers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.TransformerException;
 
@@ -26,7 +39,6 @@ import pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObject;
 import pl.psnc.dlibra.content.ContentServer;
 import pl.psnc.dlibra.metadata.AbstractPublicationInfo;
 import pl.psnc.dlibra.metadata.DirectoryId;
-import pl.psnc.dlibra.metadata.Edition;
 import pl.psnc.dlibra.metadata.EditionId;
 import pl.psnc.dlibra.metadata.LibCollectionId;
 import pl.psnc.dlibra.metadata.MetadataServer;
@@ -44,23 +56,79 @@ import pl.psnc.dlibra.user.User;
 import pl.psnc.dlibra.user.UserManager;
 
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Implementation of the digital library interface based on dLibra.
  * 
+ * A data source is thread-safe and may be reused by all requests of its user, see {@link DLibraDataSourcePool}.
+ * 
  * @author piotrhol
  * 
  */
 public class DLibraDataSource implements DigitalLibrary {
 
     /** logger. */
-    @SuppressWarnings("unused")
     private static final Logger LOGGER = Logger.getLogger(DLibraDataSource.class);
 
     public static final DirectoryId ROOT_DIRECTORY_ID = new DirectoryId(1L);
 
     public final static int BUFFER_SIZE = 4096;
 
+    /** Copy buffers, shared by all data sources. */
+    private static final BufferPool BUFFER_POOL = new BufferPool();
+
+    /** Index of edition files, shared by all data sources. */
+    private static final EditionFilesIndex EDITION_FILES_INDEX = new EditionFilesIndex();
+
+    /** Index of edition folders, shared by all data sources. */
+    private static final EditionPathIndex EDITION_PATH_INDEX = new EditionPathIndex();
+
+    /** Filters of existing file paths, shared by all data sources. */
+    private static final ExistingPathsFilter EXISTING_PATHS_FILTER = new ExistingPathsFilter();
+
+    /** Cache of file metadata, shared by all data sources. */
+    private static final ResourceMetadataCache RESOURCE_METADATA_CACHE = new ResourceMetadataCache(
+            ResourceMetadataCache.DEFAULT_MAX_VERSIONS);
+
+    /** Cache of research object ids, shared by all data sources. */
+    private static final ResearchObjectIdCache RESEARCH_OBJECT_ID_CACHE = new ResearchObjectIdCache();
+
+    /** Cache of user home directories and workspaces, shared by all data sources. */
+    private static final WorkspaceLookupCache WORKSPACE_LOOKUP_CACHE = new WorkspaceLookupCache();
+
+    /** Index of child publications of group publications, shared by all data sources. */
+    private static final ChildPublicationIndex CHILD_PUBLICATION_INDEX = new ChildPublicationIndex();
+
+    /** Index of the most recent editions of publications, shared by all data sources. */
+    private static final LatestEditionIndex LATEST_EDITION_INDEX = new LatestEditionIndex();
+
+    /** Latencies of reading whole files, shared by all data sources. */
+    private static final LatencyRecorder FILE_CONTENTS_LATENCY = new LatencyRecorder();
+
+    /** Workers producing zip archives, shared by all data sources. */
+    private static volatile ZipExportExecutor zipExportExecutor = new ZipExportExecutor();
+
+    /** Cache of finished zip archives, shared by all data sources, null if disabled. */
+    private static volatile ZipArchiveCache zipArchiveCache = null;
+
+    /** Cache of file contents, shared by all data sources, null if disabled. */
+    private static volatile VersionContentCache versionContentCache = null;
+
+    /** Verifier of uploaded file digests, shared by all data sources, null if disabled. */
+    private static volatile DigestVerifier digestVerifier = null;
+
+    /** Default number of threads uploading files in bulk. */
+    public static final int DEFAULT_UPLOAD_THREADS = 8;
+
+    /** Threads uploading files in bulk, shared by all data sources. */
+    private static volatile ExecutorService uploadExecutor = createUploadExecutor(DEFAULT_UPLOAD_THREADS);
+
+    /** Threads resolving dLibra services when data sources are created, shared by all data sources. */
+    private static final ExecutorService SERVICE_RESOLUTION_EXECUTOR = Executors
+            .newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("service resolver %d").setDaemon(true)
+                    .build());
+
     private final UserServiceResolver serviceResolver;
 
     private final String userLogin;
@@ -85,6 +153,9 @@ public class DLibraDataSource implements DigitalLibrary {
 
     private final LibCollectionId collectionId;
 
+    /** Duration of each phase of creating this data source, in milliseconds. */
+    private final Map<String, Long> startupTimes;
+
 
     /**
      * Constructor.
@@ -109,6 +180,10 @@ public class DLibraDataSource implements DigitalLibrary {
     public DLibraDataSource(String host, int port, long workspacesContainerDirectoryId, long collectionId,
             String userLogin, String password)
             throws DigitalLibraryException, IOException {
+        long start = System.nanoTime();
+        // the session factory is only needed by the first request, let it be built in the meantime
+        HibernateUtil.initializeInBackground();
+        Map<String, Long> times = new LinkedHashMap<String, Long>();
         try {
             AuthorizationToken authorizationToken = new AuthorizationToken(userLogin, password);
             serviceResolver = new UserServiceResolver(new ServiceUrl(InetAddress.getByName(host),
@@ -118,20 +193,139 @@ public class DLibraDataSource implements DigitalLibrary {
             this.workspacesContainerDirectoryId = new DirectoryId(workspacesContainerDirectoryId);
             this.collectionId = new LibCollectionId(collectionId);
 
-            metadataServer = DLStaticServiceResolver.getMetadataServer(serviceResolver, null);
-            contentServer = DLStaticServiceResolver.getContentServer(serviceResolver, null);
-            userManager = DLStaticServiceResolver.getUserServer(serviceResolver, null).getUserManager();
+            final UserServiceResolver resolver = serviceResolver;
+            ServiceResolution<MetadataServer> metadataResolution = new ServiceResolution<MetadataServer>() {
+
+                @Override
+                protected MetadataServer resolve()
+                        throws DLibraException {
+                    return DLStaticServiceResolver.getMetadataServer(resolver, null);
+                }
+            };
+            ServiceResolution<ContentServer> contentResolution = new ServiceResolution<ContentServer>() {
+
+                @Override
+                protected ContentServer resolve()
+                        throws DLibraException {
+                    return DLStaticServiceResolver.getContentServer(resolver, null);
+                }
+            };
+            ServiceResolution<UserManager> userResolution = new ServiceResolution<UserManager>() {
+
+                @Override
+                protected UserManager resolve()
+                        throws DLibraException, RemoteException {
+                    return DLStaticServiceResolver.getUserServer(resolver, null).getUserManager();
+                }
+            };
+            Future<MetadataServer> metadataFuture = SERVICE_RESOLUTION_EXECUTOR.submit(metadataResolution);
+            Future<ContentServer> contentFuture = SERVICE_RESOLUTION_EXECUTOR.submit(contentResolution);
+            Future<UserManager> userFuture = SERVICE_RESOLUTION_EXECUTOR.submit(userResolution);
+            metadataServer = getResolved(metadataFuture);
+            contentServer = getResolved(contentFuture);
+            userManager = getResolved(userFuture);
+            times.put("metadataServer", metadataResolution.time);
+            times.put("contentServer", contentResolution.time);
+            times.put("userServer", userResolution.time);
+            times.put("services", (System.nanoTime() - start) / 1000000);
         } catch (DLibraException e) {
             throw new DigitalLibraryException(e);
         } catch (MalformedURLException | UnknownHostException e) {
             throw new IOException(e);
         }
 
+        long helpersStart = System.nanoTime();
         usersHelper = new UsersHelper(this);
         publicationsHelper = new PublicationsHelper(this);
         filesHelper = new FilesHelper(this);
         editionHelper = new EditionHelper(metadataServer.getPublicationManager());
         attributesHelper = new AttributesHelper(this);
+        times.put("helpers", (System.nanoTime() - helpersStart) / 1000000);
+        times.put("total", (System.nanoTime() - start) / 1000000);
+        startupTimes = Collections.unmodifiableMap(times);
+        LOGGER.debug(String.format("Created a data source for %s, times in ms: %s", userLogin, startupTimes));
+    }
+
+
+    /**
+     * Resolves a dLibra service, measuring the time it takes.
+     * 
+     * @param <T>
+     *            service class
+     */
+    private abstract static class ServiceResolution<T> implements Callable<T> {
+
+        /** Time of the resolution in milliseconds, set when it finishes. */
+        private volatile long time;
+
+
+        @Override
+        public T call()
+                throws DLibraException, IOException {
+            long start = System.nanoTime();
+            try {
+                return resolve();
+            } finally {
+                time = (System.nanoTime() - start) / 1000000;
+            }
+        }
+
+
+        /**
+         * Resolve the service.
+         * 
+         * @return the service
+         * @throws DLibraException
+         *             the service is not available
+         * @throws IOException
+         *             error connecting to dLibra
+         */
+        protected abstract T resolve()
+                throws DLibraException, IOException;
+    }
+
+
+    /**
+     * Wait for a service to be resolved.
+     * 
+     * @param future
+     *            the resolution
+     * @return the service
+     * @throws DLibraException
+     *             the service is not available
+     * @throws IOException
+     *             error connecting to dLibra or the thread has been interrupted
+     */
+    private static <T> T getResolved(Future<T> future)
+            throws DLibraException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving dLibra services");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DLibraException) {
+                throw (DLibraException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Resolving dLibra services failed", e.getCause());
+        }
+    }
+
+
+    /**
+     * Get the duration of each phase of creating this data source: resolving each dLibra service, resolving all of
+     * them concurrently, creating the helpers and the total.
+     * 
+     * @return phase names mapped to durations in milliseconds, in the order of the phases
+     */
+    public Map<String, Long> getStartupTimes() {
+        return startupTimes;
     }
 
 
@@ -175,6 +369,256 @@ public class DLibraDataSource implements DigitalLibrary {
     }
 
 
+    /**
+     * Get the index of edition files shared by all data sources, i.e. to read its statistics.
+     * 
+     * @return the edition files index
+     */
+    public static EditionFilesIndex getEditionFilesIndex() {
+        return EDITION_FILES_INDEX;
+    }
+
+
+    /**
+     * Get the index of edition folders shared by all data sources.
+     * 
+     * @return the edition path index
+     */
+    public static EditionPathIndex getEditionPathIndex() {
+        return EDITION_PATH_INDEX;
+    }
+
+
+    /**
+     * Get the filters of existing file paths shared by all data sources, i.e. to read their false positive rate.
+     * 
+     * @return the existing paths filter
+     */
+    public static ExistingPathsFilter getExistingPathsFilter() {
+        return EXISTING_PATHS_FILTER;
+    }
+
+
+    /**
+     * Get the cache of file metadata shared by all data sources, i.e. to read its statistics.
+     * 
+     * @return the resource metadata cache
+     */
+    public static ResourceMetadataCache getResourceMetadataCache() {
+        return RESOURCE_METADATA_CACHE;
+    }
+
+
+    /**
+     * Get the cache of research object ids shared by all data sources, i.e. to read its statistics.
+     * 
+     * @return the research object id cache
+     */
+    public static ResearchObjectIdCache getResearchObjectIdCache() {
+        return RESEARCH_OBJECT_ID_CACHE;
+    }
+
+
+    /**
+     * Get the cache of user home directories and workspaces shared by all data sources, i.e. to read its statistics.
+     * 
+     * @return the workspace lookup cache
+     */
+    public static WorkspaceLookupCache getWorkspaceLookupCache() {
+        return WORKSPACE_LOOKUP_CACHE;
+    }
+
+
+    /**
+     * Get the index of child publications shared by all data sources, i.e. to read its statistics.
+     * 
+     * @return the child publication index
+     */
+    public static ChildPublicationIndex getChildPublicationIndex() {
+        return CHILD_PUBLICATION_INDEX;
+    }
+
+
+    /**
+     * Get the index of the most recent editions of publications shared by all data sources, i.e. to read its
+     * statistics.
+     * 
+     * @return the latest edition index
+     */
+    public static LatestEditionIndex getLatestEditionIndex() {
+        return LATEST_EDITION_INDEX;
+    }
+
+
+    /**
+     * Get the latencies of reading whole files with {@link #getFileContents(URI, String)}, shared by all data sources.
+     * 
+     * @return the latency recorder
+     */
+    public static LatencyRecorder getFileContentsLatency() {
+        return FILE_CONTENTS_LATENCY;
+    }
+
+
+    /**
+     * Get the pool of copy buffers shared by all data sources.
+     * 
+     * @return the buffer pool
+     */
+    public static BufferPool getBufferPool() {
+        return BUFFER_POOL;
+    }
+
+
+    /**
+     * Get the workers producing zip archives, shared by all data sources.
+     * 
+     * @return the zip export executor
+     */
+    public static ZipExportExecutor getZipExportExecutor() {
+        return zipExportExecutor;
+    }
+
+
+    /**
+     * Replace the workers producing zip archives. The previous executor is shut down after finishing the exports it
+     * has accepted.
+     * 
+     * @param executor
+     *            the new zip export executor
+     */
+    public static void setZipExportExecutor(ZipExportExecutor executor) {
+        ZipExportExecutor previous = zipExportExecutor;
+        zipExportExecutor = executor;
+        previous.shutdown();
+    }
+
+
+    /**
+     * Get the cache of finished zip archives shared by all data sources.
+     * 
+     * @return the zip archive cache or null if zip archives are not cached
+     */
+    public static ZipArchiveCache getZipArchiveCache() {
+        return zipArchiveCache;
+    }
+
+
+    /**
+     * Enable or disable caching of finished zip archives. Archives are not cached by default.
+     * 
+     * @param cache
+     *            the zip archive cache or null to disable caching
+     */
+    public static void setZipArchiveCache(ZipArchiveCache cache) {
+        zipArchiveCache = cache;
+    }
+
+
+    /**
+     * Get the cache of file contents shared by all data sources.
+     * 
+     * @return the content cache or null if file contents are not cached
+     */
+    public static VersionContentCache getVersionContentCache() {
+        return versionContentCache;
+    }
+
+
+    /**
+     * Enable or disable caching of file contents. File contents are not cached by default.
+     * 
+     * @param cache
+     *            the content cache or null to disable caching
+     */
+    public static void setVersionContentCache(VersionContentCache cache) {
+        versionContentCache = cache;
+    }
+
+
+    /**
+     * Get the verifier comparing the digests of uploaded files with the digests computed by dLibra.
+     * 
+     * @return the digest verifier or null if digests are not verified
+     */
+    public static DigestVerifier getDigestVerifier() {
+        return digestVerifier;
+    }
+
+
+    /**
+     * Enable or disable the verification of uploaded file digests. Digests are not verified by default. The previous
+     * verifier is shut down.
+     * 
+     * @param verifier
+     *            the digest verifier or null to disable verification
+     */
+    public static void setDigestVerifier(DigestVerifier verifier) {
+        DigestVerifier previous = digestVerifier;
+        digestVerifier = verifier;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+
+    /**
+     * Create a pool of threads uploading files in bulk.
+     * 
+     * @param threads
+     *            maximum number of files uploaded at the same time
+     * @return a new executor
+     */
+    public static ExecutorService createUploadExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("file uploader %d")
+                        .setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * Get the threads uploading files in bulk, shared by all data sources.
+     * 
+     * @return the upload executor
+     */
+    public static ExecutorService getUploadExecutor() {
+        return uploadExecutor;
+    }
+
+
+    /**
+     * Replace the threads uploading files in bulk. The previous executor is shut down after finishing the uploads it
+     * has accepted.
+     * 
+     * @param executor
+     *            the new upload executor
+     */
+    public static void setUploadExecutor(ExecutorService executor) {
+        ExecutorService previous = uploadExecutor;
+        uploadExecutor = executor;
+        previous.shutdown();
+    }
+
+
+    /**
+     * Discard everything cached about an edition. Must be called whenever an edition is modified. The edition path
+     * index and the existing paths filter are not affected, because they are updated by {@link FilesHelper} when files
+     * are written or deleted.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     */
+    static void invalidateEdition(long editionId) {
+        EDITION_FILES_INDEX.invalidate(editionId);
+        ZipArchiveCache cache = zipArchiveCache;
+        if (cache != null) {
+            cache.invalidate(editionId);
+        }
+    }
+
+
     /**
      * Get the profile of the user that is logged in to dLibra.
      * 
@@ -227,12 +671,44 @@ public class DLibraDataSource implements DigitalLibrary {
     @Override
     public InputStream getZippedFolder(URI uri, String folder)
             throws DigitalLibraryException, NotFoundException {
+        ResearchObject ro = getResearchObjectIds(uri);
+        try {
+            return filesHelper.getZippedFolder(ro, folder);
+        } catch (IdNotFoundException e) {
+            throw new NotFoundException("Something was not found", e);
+        } catch (IOException | DLibraException | RejectedExecutionException e) {
+            throw new DigitalLibraryException(e);
+        }
+    }
+
+
+    /**
+     * Return a research object with its edition id, from the research object id cache or loaded in a transaction that
+     * is committed before returning. Used by the operations that may wait for a long time, i.e. for a zip archive
+     * built by another client, so that they don't hold a database transaction meanwhile.
+     * 
+     * @param uri
+     *            RO URI
+     * @return research object, detached from the session
+     * @throws DigitalLibraryException
+     *             dLibra exception
+     * @throws NotFoundException
+     *             the RO was not found
+     */
+    private ResearchObject getResearchObjectIds(URI uri)
+            throws DigitalLibraryException, NotFoundException {
+        ResearchObject cached = RESEARCH_OBJECT_ID_CACHE.get(uri);
+        if (cached != null) {
+            return cached;
+        }
+        long stamp = RESEARCH_OBJECT_ID_CACHE.getStamp(uri);
         HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
         try {
             ResearchObject ro = ResearchObject.create(uri);
-            InputStream result = filesHelper.getZippedFolder(ro, folder);
+            getDlEditionId(ro);
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
-            return result;
+            RESEARCH_OBJECT_ID_CACHE.put(ro, stamp);
+            return ro;
         } catch (IdNotFoundException e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
             throw new NotFoundException("Something was not found", e);
@@ -249,16 +725,84 @@ public class DLibraDataSource implements DigitalLibrary {
     @Override
     public InputStream getFileContents(URI uri, String filePath)
             throws DigitalLibraryException, NotFoundException {
+        long start = System.nanoTime();
+        try {
+            ResearchObject cached = RESEARCH_OBJECT_ID_CACHE.get(uri);
+            if (cached != null) {
+                try {
+                    return filesHelper.getFileContents(cached, filePath);
+                } catch (IdNotFoundException e) {
+                    throw new NotFoundException("Something was not found", e);
+                } catch (RemoteException | DLibraException e) {
+                    throw new DigitalLibraryException(e);
+                }
+            }
+            long stamp = RESEARCH_OBJECT_ID_CACHE.getStamp(uri);
+            try {
+                HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+                ResearchObject ro = ResearchObject.create(uri);
+                InputStream result = filesHelper.getFileContents(ro, filePath);
+                HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+                RESEARCH_OBJECT_ID_CACHE.put(ro, stamp);
+                return result;
+            } catch (IdNotFoundException e) {
+                HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+                throw new NotFoundException("Something was not found", e);
+            } catch (RemoteException | DLibraException e) {
+                HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+                throw new DigitalLibraryException(e);
+            } catch (Throwable e) {
+                HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+                throw e;
+            }
+        } finally {
+            FILE_CONTENTS_LATENCY.record(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * Get a part of the contents of a file, i.e. to serve an HTTP range request. The skipped bytes are not
+     * transferred if the dLibra content server can skip them.
+     * 
+     * @param uri
+     *            RO URI
+     * @param filePath
+     *            file path
+     * @param offset
+     *            position of the first byte to return
+     * @param length
+     *            maximum number of bytes to return, or -1 to read until the end of the file
+     * @return the file contents starting at offset, empty if offset is beyond the end of the file
+     * @throws DigitalLibraryException
+     *             dLibra exception
+     * @throws NotFoundException
+     *             the file was not found
+     */
+    public InputStream getFileContents(URI uri, String filePath, long offset, long length)
+            throws DigitalLibraryException, NotFoundException {
+        ResearchObject cached = RESEARCH_OBJECT_ID_CACHE.get(uri);
+        if (cached != null) {
+            try {
+                return filesHelper.getFileContents(cached, filePath, offset, length);
+            } catch (IdNotFoundException e) {
+                throw new NotFoundException("Something was not found", e);
+            } catch (IOException | DLibraException e) {
+                throw new DigitalLibraryException(e);
+            }
+        }
+        long stamp = RESEARCH_OBJECT_ID_CACHE.getStamp(uri);
         try {
             HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
             ResearchObject ro = ResearchObject.create(uri);
-            InputStream result = filesHelper.getFileContents(ro, filePath);
+            InputStream result = filesHelper.getFileContents(ro, filePath, offset, length);
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+            RESEARCH_OBJECT_ID_CACHE.put(ro, stamp);
             return result;
         } catch (IdNotFoundException e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
             throw new NotFoundException("Something was not found", e);
-        } catch (RemoteException | DLibraException e) {
+        } catch (IOException | DLibraException e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
             throw new DigitalLibraryException(e);
         } catch (Throwable e) {
@@ -271,11 +815,26 @@ public class DLibraDataSource implements DigitalLibrary {
     @Override
     public boolean fileExists(URI uri, String filePath)
             throws DigitalLibraryException {
+        ResearchObject cached = RESEARCH_OBJECT_ID_CACHE.get(uri);
+        Boolean mightExist = cached != null ? EXISTING_PATHS_FILTER.mightContain(uri, cached.getDlEditionId(),
+            filePath) : null;
+        if (mightExist != null && !mightExist) {
+            return false;
+        }
+        Boolean indexed = cached != null ? filesHelper.fileExistsIndexed(cached, filePath) : null;
+        if (indexed != null) {
+            if (mightExist != null) {
+                EXISTING_PATHS_FILTER.recordPositive(indexed);
+            }
+            return indexed;
+        }
+        long stamp = RESEARCH_OBJECT_ID_CACHE.getStamp(uri);
         try {
             HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
             ResearchObject ro = ResearchObject.create(uri);
             boolean result = filesHelper.fileExists(ro, filePath);
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+            RESEARCH_OBJECT_ID_CACHE.put(ro, stamp);
             return result;
         } catch (IdNotFoundException e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
@@ -315,14 +874,102 @@ public class DLibraDataSource implements DigitalLibrary {
     }
 
 
+    /**
+     * Create or update many files of an RO in one transaction. The file contents are uploaded in parallel and the RO
+     * is modified only if all of them have been uploaded.
+     * 
+     * @param uri
+     *            RO URI
+     * @param contents
+     *            file paths mapped to file contents; all streams are closed
+     * @param mimeTypes
+     *            file paths mapped to MIME types, missing types are {@value FilesHelper#DEFAULT_MIME_TYPE}
+     * @return metadata of the files stored; an empty folder uploaded together with a file inside it is not stored
+     * @throws DigitalLibraryException
+     *             dLibra exception
+     * @throws NotFoundException
+     *             the RO was not found
+     * @throws AccessDeniedException
+     *             the user may not modify the RO
+     */
+    public List<ResourceMetadata> createOrUpdateFiles(URI uri, Map<String, InputStream> contents,
+            Map<String, String> mimeTypes)
+            throws DigitalLibraryException, NotFoundException, AccessDeniedException {
+        try {
+            HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+            ResearchObject ro = ResearchObject.create(uri);
+            List<ResourceMetadata> result = filesHelper.createOrUpdateFiles(ro, contents, mimeTypes);
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+            return result;
+        } catch (IdNotFoundException e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw new NotFoundException("Something was not found", e);
+        } catch (pl.psnc.dlibra.service.AccessDeniedException e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw new AccessDeniedException(e.getMessage(), e);
+        } catch (IOException | DLibraException e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw new DigitalLibraryException(e);
+        } catch (Throwable e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Compare the file metadata of an RO mirrored in the database with dLibra and fix the differences. If there are
+     * any, everything cached about the RO edition is discarded as well.
+     * 
+     * @param uri
+     *            RO URI
+     * @return number of files that were missing, different or superfluous in the database
+     * @throws DigitalLibraryException
+     *             dLibra exception
+     * @throws NotFoundException
+     *             the RO was not found
+     */
+    public int reconcileFilesMirror(URI uri)
+            throws DigitalLibraryException, NotFoundException {
+        try {
+            HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+            ResearchObject ro = ResearchObject.create(uri);
+            int result = filesHelper.reconcileMirror(ro);
+            if (result > 0) {
+                invalidateEdition(ro.getDlEditionId());
+                EDITION_PATH_INDEX.invalidate(ro.getDlEditionId());
+                EXISTING_PATHS_FILTER.invalidate(ro.getUri());
+            }
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+            return result;
+        } catch (IdNotFoundException e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw new NotFoundException("Something was not found", e);
+        } catch (RemoteException | DLibraException e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw new DigitalLibraryException(e);
+        } catch (Throwable e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            throw e;
+        }
+    }
+
+
     @Override
     public ResourceMetadata getFileInfo(URI uri, String filePath)
             throws NotFoundException, DigitalLibraryException, AccessDeniedException {
+        ResearchObject cached = RESEARCH_OBJECT_ID_CACHE.get(uri);
+        ResourceMetadata cachedResult = cached != null ? filesHelper.getCachedFileInfo(cached, filePath) : null;
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+        long stamp = RESEARCH_OBJECT_ID_CACHE.getStamp(uri);
         try {
             HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
             ResearchObject ro = ResearchObject.create(uri);
             ResourceMetadata result = filesHelper.getFileInfo(ro, filePath);
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+            RESEARCH_OBJECT_ID_CACHE.put(ro, stamp);
             return result;
         } catch (IdNotFoundException e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
@@ -371,8 +1018,8 @@ public class DLibraDataSource implements DigitalLibrary {
             createRoGroupPublication(ro);
             createVersionPublication(ro);
             createEdition(ro, mainFileContent, mainFilePath, mainFileMimeType);
-            publicationsHelper.publishPublication(ro);
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+            RESEARCH_OBJECT_ID_CACHE.invalidate(uri);
         } catch (IOException | DLibraException | TransformerException e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
             throw new DigitalLibraryException(e);
@@ -390,6 +1037,20 @@ public class DLibraDataSource implements DigitalLibrary {
         EditionId editionId = publicationsHelper.preparePublicationAsNew(getRoId(ro), new PublicationId(
                 getDlROVersionId(ro)), mainFileContent, mainFilePath, mainFileMimeType);
         ro.setDlEditionId(editionId.getId());
+        resetFiles(ro);
+    }
+
+
+    /**
+     * Removes the file metadata mirrored for an RO and its existing paths filter. Must be called whenever the edition
+     * id of the RO is reset or reassigned.
+     * 
+     * @param ro
+     *            research object
+     */
+    private void resetFiles(ResearchObject ro) {
+        filesHelper.clearMirror(ro);
+        EXISTING_PATHS_FILTER.invalidate(ro.getUri());
     }
 
 
@@ -409,6 +1070,7 @@ public class DLibraDataSource implements DigitalLibrary {
             ro.setDlROId(0);
             ro.setDlROVersionId(0);
             ro.setDlEditionId(0);
+            resetFiles(ro);
         }
         if (getDlROId(ro) == 0) {
             PublicationId roId = publicationsHelper.createROGroupPublication(new PublicationId(ro.getDlWorkspaceId()),
@@ -426,6 +1088,7 @@ public class DLibraDataSource implements DigitalLibrary {
             ro.setDlROId(0);
             ro.setDlROVersionId(0);
             ro.setDlEditionId(0);
+            resetFiles(ro);
         }
         if (getDlWorkspaceId(ro) == 0) {
             PublicationId workspaceId = publicationsHelper.createWorkspaceGroupPublication("default");
@@ -507,8 +1170,8 @@ public class DLibraDataSource implements DigitalLibrary {
             throws RemoteException, DLibraException {
         if (ro.getDlEditionId() == 0) {
             long versionIdLong = getDlROVersionId(ro);
-            Edition edition = (Edition) editionHelper.getLastEdition(new PublicationId(versionIdLong));
-            ro.setDlEditionId(edition != null ? edition.getId().getId() : 0);
+            EditionId editionId = editionHelper.getLastEditionId(new PublicationId(versionIdLong));
+            ro.setDlEditionId(editionId != null ? editionId.getId() : 0);
         }
         return ro.getDlEditionId();
     }
@@ -520,7 +1183,11 @@ public class DLibraDataSource implements DigitalLibrary {
         try {
             HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
             ResearchObject ro = ResearchObject.create(uri);
+            filesHelper.clearMirror(ro);
             ro.delete();
+            invalidateEdition(ro.getDlEditionId());
+            EDITION_PATH_INDEX.invalidate(ro.getDlEditionId());
+            EXISTING_PATHS_FILTER.invalidate(ro.getUri());
             publicationsHelper.deleteVersionPublication(ro);
             List<PublicationInfo> vers = publicationsHelper.listPublicationsInROGroupPublication(new PublicationId(ro
                     .getDlROId()));
@@ -541,6 +1208,9 @@ public class DLibraDataSource implements DigitalLibrary {
         } catch (Throwable e) {
             HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
             throw e;
+        } finally {
+            // after the commit, so that a concurrent read can't cache the ids of the deleted row again
+            RESEARCH_OBJECT_ID_CACHE.invalidate(uri);
         }
 
     }
@@ -584,21 +1254,13 @@ public class DLibraDataSource implements DigitalLibrary {
     @Override
     public InputStream getZippedResearchObject(URI uri)
             throws DigitalLibraryException, NotFoundException {
+        ResearchObject ro = getResearchObjectIds(uri);
         try {
-            HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
-            ResearchObject ro = ResearchObject.create(uri);
-            InputStream result = filesHelper.getZippedFolder(ro, null);
-            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
-            return result;
+            return filesHelper.getZippedFolder(ro, null);
         } catch (IdNotFoundException e) {
-            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
             throw new NotFoundException("Something was not found", e);
-        } catch (RemoteException | DLibraException e) {
-            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+        } catch (IOException | DLibraException | RejectedExecutionException e) {
             throw new DigitalLibraryException(e);
-        } catch (Throwable e) {
-            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
-            throw e;
         }
     }
 
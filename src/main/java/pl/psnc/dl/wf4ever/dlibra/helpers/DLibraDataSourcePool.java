@@ -0,0 +1,230 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.wf4ever.dl.DigitalLibraryException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A pool of data sources connected to one dLibra instance, keyed by user login and password, so that the RMI stubs
+ * and helpers of a data source are resolved once and reused by the following requests of the same user.
+ * 
+ * A {@link DLibraDataSource} has no mutable state of its own and the database sessions it uses are bound to the
+ * calling thread, so one data source may be used by many threads at the same time. The pool is thread-safe and
+ * concurrent requests for a missing data source wait for a single construction. Passwords are not stored, the pool
+ * is keyed by a salted digest of the password, so a user that changes their password gets a new data source. Data
+ * sources that are not used for a while, and the least recently used ones when the pool is full, are removed.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class DLibraDataSourcePool {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(DLibraDataSourcePool.class);
+
+    /** Default maximum number of data sources. */
+    public static final long DEFAULT_MAX_SIZE = 100;
+
+    /** Default time after which an unused data source is removed, in milliseconds. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 15 * 60 * 1000;
+
+    /** Separates the login from the password digest in the pool keys. */
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /** dLibra host. */
+    private final String host;
+
+    /** dLibra port. */
+    private final int port;
+
+    /** dLibra id of the directory with workspaces. */
+    private final long workspacesContainerDirectoryId;
+
+    /** dLibra id of the collection with ROs. */
+    private final long collectionId;
+
+    /** Salt of the password digests. */
+    private final byte[] salt = new byte[16];
+
+    /** Login and password digest -> data source. */
+    private final Cache<String, DLibraDataSource> dataSources;
+
+    /** Number of data sources created. */
+    private final AtomicLong created = new AtomicLong();
+
+    /** Number of requests served with an existing data source. */
+    private final AtomicLong reused = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param host
+     *            dLibra host
+     * @param port
+     *            dLibra port
+     * @param workspacesContainerDirectoryId
+     *            dLibra id of the directory with workspaces
+     * @param collectionId
+     *            dLibra id of the collection with ROs
+     * @param maxSize
+     *            maximum number of data sources
+     * @param idleTimeout
+     *            time after which an unused data source is removed, in milliseconds
+     */
+    public DLibraDataSourcePool(String host, int port, long workspacesContainerDirectoryId, long collectionId,
+            long maxSize, long idleTimeout) {
+        this.host = host;
+        this.port = port;
+        this.workspacesContainerDirectoryId = workspacesContainerDirectoryId;
+        this.collectionId = collectionId;
+        new SecureRandom().nextBytes(salt);
+        this.dataSources = CacheBuilder.newBuilder().maximumSize(maxSize)
+                .expireAfterAccess(idleTimeout, TimeUnit.MILLISECONDS).build();
+    }
+
+
+    /**
+     * Constructor with the default pool size and idle timeout.
+     * 
+     * @param host
+     *            dLibra host
+     * @param port
+     *            dLibra port
+     * @param workspacesContainerDirectoryId
+     *            dLibra id of the directory with workspaces
+     * @param collectionId
+     *            dLibra id of the collection with ROs
+     */
+    public DLibraDataSourcePool(String host, int port, long workspacesContainerDirectoryId, long collectionId) {
+        this(host, port, workspacesContainerDirectoryId, collectionId, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+
+    /**
+     * Return the data source of a user, creating it if it is not in the pool.
+     * 
+     * @param userLogin
+     *            user login
+     * @param password
+     *            user password
+     * @return the data source
+     * @throws DigitalLibraryException
+     *             internal dLibra error
+     * @throws IOException
+     *             error connecting to dLibra
+     */
+    public DLibraDataSource get(final String userLogin, final String password)
+            throws DigitalLibraryException, IOException {
+        final boolean[] loaded = { false };
+        DLibraDataSource dataSource;
+        try {
+            dataSource = dataSources.get(createKey(userLogin, password), new Callable<DLibraDataSource>() {
+
+                @Override
+                public DLibraDataSource call()
+                        throws DigitalLibraryException, IOException {
+                    loaded[0] = true;
+                    LOG.debug("Creating a data source for " + userLogin);
+                    return new DLibraDataSource(host, port, workspacesContainerDirectoryId, collectionId, userLogin,
+                            password);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DigitalLibraryException) {
+                throw (DigitalLibraryException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Creating a data source for " + userLogin + " failed", e.getCause());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        if (loaded[0]) {
+            created.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+        return dataSource;
+    }
+
+
+    /**
+     * Remove the data sources of a user, i.e. when the user is deleted.
+     * 
+     * @param userLogin
+     *            user login
+     */
+    public void invalidate(String userLogin) {
+        String prefix = userLogin + KEY_SEPARATOR;
+        for (String key : dataSources.asMap().keySet()) {
+            if (key.startsWith(prefix)) {
+                dataSources.invalidate(key);
+            }
+        }
+    }
+
+
+    /**
+     * Remove all data sources.
+     */
+    public void invalidateAll() {
+        dataSources.invalidateAll();
+    }
+
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+
+    /**
+     * Return the number of data sources currently in the pool.
+     * 
+     * @return number of data sources
+     */
+    public long size() {
+        return dataSources.size();
+    }
+
+
+    private String createKey(String userLogin, String password) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        digest.update(salt);
+        digest.update(password.getBytes(Charset.forName("UTF-8")));
+        StringBuilder key = new StringBuilder(userLogin).append(KEY_SEPARATOR);
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+}
@@ -0,0 +1,116 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Stores files that are already compressed, recognized by their MIME type or extension, and files too small to gain
+ * anything from compression. Other files are deflated at a configurable level.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class DefaultZipCompressionPolicy implements ZipCompressionPolicy {
+
+    /** MIME types of compressed formats. */
+    public static final Collection<String> COMPRESSED_MIME_TYPES = Arrays.asList("image/jpeg", "image/png",
+        "image/gif", "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+        "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed", "application/java-archive",
+        "audio/mpeg", "video/mpeg", "video/mp4", "video/quicktime");
+
+    /** Extensions of compressed formats. */
+    public static final Collection<String> COMPRESSED_EXTENSIONS = Arrays.asList("jpg", "jpeg", "png", "gif", "zip",
+        "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "war", "mp3", "mp4", "mpg", "mpeg", "mov", "docx", "xlsx", "pptx",
+        "odt", "ods", "odp");
+
+    /** Default size below which files are stored, in bytes. */
+    public static final long DEFAULT_MIN_DEFLATED_SIZE = 64;
+
+    /** MIME types of files to store, lower case. */
+    private final Set<String> storedMimeTypes = new HashSet<String>();
+
+    /** Extensions of files to store, lower case, without the dot. */
+    private final Set<String> storedExtensions = new HashSet<String>();
+
+    /** Size below which files are stored. */
+    private final long minDeflatedSize;
+
+    /** Compression level of the other files. */
+    private final int level;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param storedMimeTypes
+     *            MIME types of files to store
+     * @param storedExtensions
+     *            extensions of files to store, without the dot
+     * @param minDeflatedSize
+     *            size below which files are stored, in bytes
+     * @param level
+     *            {@link Deflater} compression level of the other files
+     */
+    public DefaultZipCompressionPolicy(Collection<String> storedMimeTypes, Collection<String> storedExtensions,
+            long minDeflatedSize, int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        for (String mimeType : storedMimeTypes) {
+            this.storedMimeTypes.add(mimeType.toLowerCase(Locale.ENGLISH));
+        }
+        for (String extension : storedExtensions) {
+            this.storedExtensions.add(extension.toLowerCase(Locale.ENGLISH));
+        }
+        this.minDeflatedSize = minDeflatedSize;
+        this.level = level;
+    }
+
+
+    /**
+     * Constructor of a policy that stores the common compressed formats and deflates other files at the given level.
+     * 
+     * @param level
+     *            {@link Deflater} compression level
+     */
+    public DefaultZipCompressionPolicy(int level) {
+        this(COMPRESSED_MIME_TYPES, COMPRESSED_EXTENSIONS, DEFAULT_MIN_DEFLATED_SIZE, level);
+    }
+
+
+    /**
+     * Constructor of a policy that stores the common compressed formats and deflates other files at the default
+     * level.
+     */
+    public DefaultZipCompressionPolicy() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+
+    @Override
+    public int getCompressionLevel(String path, String mimeType, long size) {
+        if (size >= 0 && size < minDeflatedSize) {
+            return Deflater.NO_COMPRESSION;
+        }
+        if (mimeType != null) {
+            // ignore parameters such as charset
+            int semicolon = mimeType.indexOf(';');
+            String type = (semicolon >= 0 ? mimeType.substring(0, semicolon) : mimeType).trim();
+            if (storedMimeTypes.contains(type.toLowerCase(Locale.ENGLISH))) {
+                return Deflater.NO_COMPRESSION;
+            }
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+            return Deflater.NO_COMPRESSION;
+        }
+        return level;
+    }
+
+}
@@ -0,0 +1,129 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.content.ContentServer;
+import pl.psnc.dlibra.metadata.VersionId;
+import pl.psnc.dlibra.service.DLibraException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Compares, in a background thread, the MD5 digests of uploaded files computed locally with the digests calculated by
+ * the dLibra content server. A mismatch is logged as an error. Verifications that do not fit in the queue are
+ * skipped, so that uploads are never slowed down.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class DigestVerifier {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(DigestVerifier.class);
+
+    /** Default maximum number of verifications waiting. */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /** Verification thread. */
+    private final ThreadPoolExecutor executor;
+
+    /** Number of digests that matched. */
+    private final AtomicLong verified = new AtomicLong();
+
+    /** Number of digests that did not match. */
+    private final AtomicLong mismatches = new AtomicLong();
+
+    /** Number of verifications skipped or failed. */
+    private final AtomicLong skipped = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param queueSize
+     *            maximum number of verifications waiting
+     */
+    public DigestVerifier(int queueSize) {
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("digest verifier %d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Constructor with the default queue size.
+     */
+    public DigestVerifier() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+
+    /**
+     * Schedule the verification of a file version digest.
+     * 
+     * @param contentServer
+     *            dLibra content server
+     * @param versionId
+     *            file version id
+     * @param digest
+     *            MD5 digest computed locally
+     */
+    public void verify(final ContentServer contentServer, final VersionId versionId, final byte[] digest) {
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        byte[] serverDigest = contentServer.getFileDigest(versionId);
+                        if (Arrays.equals(digest, serverDigest)) {
+                            verified.incrementAndGet();
+                        } else {
+                            mismatches.incrementAndGet();
+                            LOG.error("Digest of version " + versionId + " computed by dLibra differs from the digest "
+                                    + "of the uploaded content");
+                        }
+                    } catch (RemoteException | DLibraException e) {
+                        skipped.incrementAndGet();
+                        LOG.warn("Could not verify the digest of version " + versionId, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            skipped.incrementAndGet();
+            LOG.debug("Skipping the digest verification of version " + versionId);
+        }
+    }
+
+
+    /**
+     * Stop the verification thread after finishing the verifications scheduled.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+
+    public long getMismatchCount() {
+        return mismatches.get();
+    }
+
+
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+}
@@ -0,0 +1,218 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.metadata.FileInfo;
+import pl.psnc.dlibra.metadata.VersionId;
+import pl.psnc.dlibra.metadata.VersionInfo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * A size-bounded, in-memory index of the files of dLibra editions. For each edition it maps the file path (starting
+ * with "/") to the file version id and the dLibra metadata of that file, so that listing a folder does not require one
+ * RMI call per file.
+ * 
+ * The index is shared by all data sources. Any operation that modifies an edition must call
+ * {@link #invalidate(long)}. An edition keeps its id when another instance modifies it, so the entries expire after
+ * {@link #DEFAULT_EXPIRY} by default to let such changes show up.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class EditionFilesIndex {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(EditionFilesIndex.class);
+
+    /** Default maximum number of files kept in the index, summed over all editions. */
+    public static final long DEFAULT_MAX_FILES = 100000;
+
+    /** Default time after which an edition is indexed again, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = 10 * 60 * 1000;
+
+    /** Edition id -> (path -> entry). */
+    private final StampedCache<Long, Map<String, Entry>> editions;
+
+
+    /**
+     * A single file of an edition.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    public static class Entry {
+
+        /** File version id. */
+        private final VersionId versionId;
+
+        /** File info. */
+        private final FileInfo fileInfo;
+
+        /** Version info, may be null if it hasn't been fetched. */
+        private final VersionInfo versionInfo;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param versionId
+         *            file version id
+         * @param fileInfo
+         *            file info
+         * @param versionInfo
+         *            version info or null
+         */
+        public Entry(VersionId versionId, FileInfo fileInfo, VersionInfo versionInfo) {
+            this.versionId = versionId;
+            this.fileInfo = fileInfo;
+            this.versionInfo = versionInfo;
+        }
+
+
+        public VersionId getVersionId() {
+            return versionId;
+        }
+
+
+        public FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+
+        public VersionInfo getVersionInfo() {
+            return versionInfo;
+        }
+    }
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxFiles
+     *            maximum number of files kept in the index, summed over all editions
+     * @param expiry
+     *            time after which an edition is indexed again, in milliseconds
+     */
+    public EditionFilesIndex(long maxFiles, long expiry) {
+        Cache<Long, Map<String, Entry>> cache = CacheBuilder.newBuilder().maximumWeight(maxFiles)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).weigher(new Weigher<Long, Map<String, Entry>>() {
+
+                    @Override
+                    public int weigh(Long key, Map<String, Entry> value) {
+                        return Math.max(1, value.size());
+                    }
+                }).build();
+        editions = new StampedCache<Long, Map<String, Entry>>(cache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public EditionFilesIndex() {
+        this(DEFAULT_MAX_FILES, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Return the files of an edition if they are indexed.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @return an unmodifiable map of file paths to entries or null if the edition is not indexed
+     */
+    public Map<String, Entry> get(long editionId) {
+        return editions.get(editionId);
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(long, Map, long)} before starting to load the files of an edition.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @return the current modification stamp of the edition
+     */
+    public long getStamp(long editionId) {
+        return editions.getStamp(editionId);
+    }
+
+
+    /**
+     * Store the files of an edition, unless it has been invalidated since the stamp was taken.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @param files
+     *            file paths mapped to entries
+     * @param stamp
+     *            value of {@link #getStamp(long)} taken before the files were loaded
+     * @return an unmodifiable view of the files
+     */
+    public Map<String, Entry> put(long editionId, Map<String, Entry> files, long stamp) {
+        Map<String, Entry> result = Collections.unmodifiableMap(files);
+        if (!editions.put(editionId, result, stamp)) {
+            LOG.debug(String.format("Edition %d was modified while being indexed, not caching", editionId));
+        }
+        return result;
+    }
+
+
+    /**
+     * Remove an edition from the index.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     */
+    public void invalidate(long editionId) {
+        editions.invalidate(editionId);
+    }
+
+
+    /**
+     * Remove all editions from the index.
+     */
+    public void invalidateAll() {
+        editions.invalidateAll();
+    }
+
+
+    public long getHitCount() {
+        return editions.getHitCount();
+    }
+
+
+    public long getMissCount() {
+        return editions.getMissCount();
+    }
+
+
+    /**
+     * Return the ratio of lookups that found the edition in the index.
+     * 
+     * @return hit ratio, 1.0 if there were no lookups
+     */
+    public double getHitRatio() {
+        long hits = editions.getHitCount();
+        long total = hits + editions.getMissCount();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+
+    /**
+     * Return the number of editions currently indexed.
+     * 
+     * @return number of editions
+     */
+    public long size() {
+        return editions.size();
+    }
+
+}
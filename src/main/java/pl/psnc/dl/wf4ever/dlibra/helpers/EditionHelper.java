@@ -6,7 +6,7 @@ package pl.psnc.dl.wf4ever.dlibra.helpers;
 import java.rmi.RemoteException;
 import java.util.Collection;
 
-import pl.psnc.dlibra.common.DLObject;
+import pl.psnc.dlibra.common.Id;
 import pl.psnc.dlibra.common.InputFilter;
 import pl.psnc.dlibra.common.OutputFilter;
 import pl.psnc.dlibra.metadata.Edition;
@@ -28,10 +28,13 @@ public class EditionHelper {
 
     private final PublicationManager publicationManager;
 
+    private final LatestEditionIndex latestEditions;
+
 
     public EditionHelper(PublicationManager publicationManager)
             throws RemoteException {
         this.publicationManager = publicationManager;
+        this.latestEditions = DLibraDataSource.getLatestEditionIndex();
     }
 
 
@@ -40,30 +43,47 @@ public class EditionHelper {
      * 
      * @param publicationId
      *            Id of the publication (RO version).
-     * @return
+     * @return the edition or null if there are no editions
      * @throws RemoteException
      * @throws DLibraException
-     *             in case no edition is found
      */
     public Edition getLastEdition(PublicationId publicationId)
             throws RemoteException, DLibraException {
+        EditionId editionId = getLastEditionId(publicationId);
+        return editionId != null ? getEdition(editionId) : null;
+    }
+
+
+    /**
+     * Returns the id of the most recently created edition of the RO version (publication). The ids are kept in the
+     * {@link LatestEditionIndex}. If the publication is not indexed, only the ids of its editions are listed and the
+     * greatest one is taken, since dLibra assigns the edition ids in the order of creation.
+     * 
+     * @param publicationId
+     *            Id of the publication (RO version).
+     * @return the edition id or null if there are no editions
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    public EditionId getLastEditionId(PublicationId publicationId)
+            throws RemoteException, DLibraException {
+        EditionId result = latestEditions.get(publicationId);
+        if (result != null) {
+            return result;
+        }
+        long stamp = latestEditions.getStamp(publicationId);
         InputFilter in = new PublicationFilter(null, publicationId).setEditionState(Edition.ALL_STATES
                 - Edition.PERMANENT_DELETED);
-        OutputFilter out = new OutputFilter(Edition.class);
-        Collection<DLObject> results = publicationManager.getObjects(in, out).getResults();
-        if (results.isEmpty()) {
-            return null;
-        }
-        Edition result = null;
-        for (DLObject object : results) {
-            Edition edition = (Edition) object;
-            if (result == null
-                    || edition.getCreationDate().after(result.getCreationDate())
-                    || (edition.getCreationDate().equals(result.getCreationDate()) && edition.getId().getId() > result
-                            .getId().getId())) {
-                result = edition;
+        OutputFilter out = new OutputFilter(EditionId.class);
+        Collection<Id> ids = publicationManager.getObjects(in, out).getResultIds();
+        for (Id id : ids) {
+            if (result == null || id.getId() > result.getId()) {
+                result = (EditionId) id;
             }
         }
+        if (result != null) {
+            latestEditions.put(publicationId, result, stamp);
+        }
         return result;
     }
 
@@ -77,9 +97,14 @@ public class EditionHelper {
 
 
     /**
-     * @param publicationName
+     * Creates an edition of a publication (RO version).
+     * 
+     * @param editionName
      * @param publicationId
-     * @param createdVersion
+     * @param published
+     *            true if the edition should be created already published, which saves reading and updating it later
+     * @param versionIds
+     *            file versions included in the edition
      * @return
      * @throws DLibraException
      * @throws AccessDeniedException
@@ -87,12 +112,14 @@ public class EditionHelper {
      * @throws RemoteException
      * @throws IllegalArgumentException
      */
-    EditionId createEdition(String editionName, PublicationId publicationId, VersionId[] versionIds)
+    EditionId createEdition(String editionName, PublicationId publicationId, boolean published, VersionId[] versionIds)
             throws DLibraException, AccessDeniedException, IdNotFoundException, RemoteException,
             IllegalArgumentException {
-        Edition edition = new Edition(null, publicationId, false);
+        Edition edition = new Edition(null, publicationId, published);
         edition.setName(editionName);
-        return publicationManager.createEdition(edition, versionIds);
+        EditionId editionId = publicationManager.createEdition(edition, versionIds);
+        latestEditions.add(publicationId, editionId);
+        return editionId;
     }
 
 }
@@ -0,0 +1,372 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * A size-bounded, in-memory index of the folder structure of dLibra editions. For each edition it keeps a trie of file
+ * paths with the number of entries in every folder and the folders that have an empty folder marker (see
+ * {@link EmptyFoldersUtility}), so that checking if a folder is empty or finding the markers above a file takes
+ * O(depth) time and no RMI calls.
+ * 
+ * Unlike {@link EditionFilesIndex}, the index is not invalidated when a file is written or deleted, but updated with
+ * {@link #add(long, String)} and {@link #remove(long, String)}. An edition that is deleted or modified in any other
+ * way must be invalidated. The tries expire like the edition files index, so that files written by another instance
+ * are not missed for long when counting the entries of a folder.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class EditionPathIndex {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(EditionPathIndex.class);
+
+    /** Default maximum number of paths kept in the index, summed over all editions. */
+    public static final long DEFAULT_MAX_PATHS = 100000;
+
+    /** Default time after which an edition is indexed again, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = EditionFilesIndex.DEFAULT_EXPIRY;
+
+    /** Edition id -> trie. */
+    private final StampedCache<Long, PathTrie> editions;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxPaths
+     *            maximum number of paths kept in the index, summed over all editions, counted when an edition is
+     *            indexed
+     * @param expiry
+     *            time after which an edition is indexed again, in milliseconds
+     */
+    public EditionPathIndex(long maxPaths, long expiry) {
+        Cache<Long, PathTrie> cache = CacheBuilder.newBuilder().maximumWeight(maxPaths)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).weigher(new Weigher<Long, PathTrie>() {
+
+                    @Override
+                    public int weigh(Long key, PathTrie value) {
+                        return Math.max(1, value.size());
+                    }
+                }).build();
+        editions = new StampedCache<Long, PathTrie>(cache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public EditionPathIndex() {
+        this(DEFAULT_MAX_PATHS, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Return the trie of an edition if it is indexed.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @return the trie or null
+     */
+    public PathTrie get(long editionId) {
+        return editions.get(editionId);
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(long, Collection, long)} before starting to load the files of an
+     * edition.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @return the current modification stamp of the edition
+     */
+    public long getStamp(long editionId) {
+        return editions.getStamp(editionId);
+    }
+
+
+    /**
+     * Build and store the trie of an edition, unless it has been modified since the stamp was taken.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @param paths
+     *            file paths, with or without the leading "/"
+     * @param stamp
+     *            value of {@link #getStamp(long)} taken before the files were loaded
+     * @return the trie
+     */
+    public PathTrie put(long editionId, Collection<String> paths, long stamp) {
+        PathTrie trie = new PathTrie();
+        for (String path : paths) {
+            trie.add(path);
+        }
+        if (!editions.put(editionId, trie, stamp)) {
+            LOG.debug(String.format("Edition %d was modified while being indexed, not caching", editionId));
+        }
+        return trie;
+    }
+
+
+    /**
+     * Record that a file has been added to an edition.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @param path
+     *            file path
+     */
+    public void add(long editionId, String path) {
+        editions.touch(editionId);
+        PathTrie trie = editions.peek(editionId);
+        if (trie != null) {
+            trie.add(path);
+        }
+    }
+
+
+    /**
+     * Record that a file has been removed from an edition.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @param path
+     *            file path
+     */
+    public void remove(long editionId, String path) {
+        editions.touch(editionId);
+        PathTrie trie = editions.peek(editionId);
+        if (trie != null) {
+            trie.remove(path);
+        }
+    }
+
+
+    /**
+     * Remove an edition from the index.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     */
+    public void invalidate(long editionId) {
+        editions.invalidate(editionId);
+    }
+
+
+    /**
+     * Remove all editions from the index.
+     */
+    public void invalidateAll() {
+        editions.invalidateAll();
+    }
+
+
+    /**
+     * Return the number of editions currently indexed.
+     * 
+     * @return number of editions
+     */
+    public long size() {
+        return editions.size();
+    }
+
+
+    /**
+     * The folder structure of a single edition. Paths are given relative to the edition root, with or without the
+     * leading "/". A path recognized by {@link EmptyFoldersUtility#isDlibraPath(String)} marks its folder as empty.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    public static class PathTrie {
+
+        /** Root folder. */
+        private final Node root = new Node();
+
+
+        /**
+         * A folder or a file.
+         */
+        private static class Node {
+
+            /** Name -> child, null until the first child is added. */
+            private Map<String, Node> children;
+
+            /** Number of files and empty folder markers below this node. */
+            private int entries = 0;
+
+            /** Is there a file with this path. */
+            private boolean file = false;
+
+            /** Does this folder have an empty folder marker. */
+            private boolean marker = false;
+
+
+            private Node getChild(String name) {
+                return children != null ? children.get(name) : null;
+            }
+        }
+
+
+        /**
+         * Add a file or an empty folder marker.
+         * 
+         * @param path
+         *            file path
+         */
+        public synchronized void add(String path) {
+            boolean isMarker = EmptyFoldersUtility.isDlibraPath(path);
+            String[] segments = split(isMarker ? EmptyFoldersUtility.convertDlibra2Real(path) : path);
+            List<Node> nodes = new ArrayList<Node>(segments.length + 1);
+            Node node = root;
+            nodes.add(node);
+            for (String segment : segments) {
+                Node child = node.getChild(segment);
+                if (child == null) {
+                    if (node.children == null) {
+                        node.children = new HashMap<String, Node>();
+                    }
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                nodes.add(node);
+            }
+            if (isMarker ? node.marker : node.file) {
+                return;
+            }
+            if (isMarker) {
+                node.marker = true;
+            } else {
+                node.file = true;
+            }
+            // a marker is an entry of its parent folder, like a file
+            for (int i = 0; i < nodes.size() - 1; i++) {
+                nodes.get(i).entries++;
+            }
+        }
+
+
+        /**
+         * Remove a file or an empty folder marker. Removing a path that is not in the trie has no effect.
+         * 
+         * @param path
+         *            file path
+         */
+        public synchronized void remove(String path) {
+            boolean isMarker = EmptyFoldersUtility.isDlibraPath(path);
+            String[] segments = split(isMarker ? EmptyFoldersUtility.convertDlibra2Real(path) : path);
+            List<Node> nodes = new ArrayList<Node>(segments.length + 1);
+            Node node = root;
+            nodes.add(node);
+            for (String segment : segments) {
+                node = node.getChild(segment);
+                if (node == null) {
+                    return;
+                }
+                nodes.add(node);
+            }
+            if (isMarker ? !node.marker : !node.file) {
+                return;
+            }
+            if (isMarker) {
+                node.marker = false;
+            } else {
+                node.file = false;
+            }
+            for (int i = 0; i < nodes.size() - 1; i++) {
+                nodes.get(i).entries--;
+            }
+            // prune the nodes that no longer hold anything
+            for (int i = nodes.size() - 1; i > 0; i--) {
+                Node child = nodes.get(i);
+                if (child.entries > 0 || child.file || child.marker) {
+                    break;
+                }
+                nodes.get(i - 1).children.remove(segments[i - 1]);
+            }
+        }
+
+
+        /**
+         * Return the number of files and empty folder markers in a folder and its subfolders. The marker of the folder
+         * itself is not counted.
+         * 
+         * @param folder
+         *            folder path, with or without the trailing "/"
+         * @return number of entries, 0 if the folder does not exist
+         */
+        public synchronized int countEntries(String folder) {
+            Node node = root;
+            for (String segment : split(folder)) {
+                node = node.getChild(segment);
+                if (node == null) {
+                    return 0;
+                }
+            }
+            return node.entries;
+        }
+
+
+        /**
+         * Return the empty folder markers of the folders that contain a path.
+         * 
+         * @param path
+         *            file path
+         * @return empty folder marker paths in the dLibra form, without the leading "/", the top folder first
+         */
+        public synchronized List<String> getMarkedAncestors(String path) {
+            List<String> result = new ArrayList<String>();
+            String[] segments = split(path);
+            StringBuilder folder = new StringBuilder();
+            Node node = root;
+            for (int i = 0; i < segments.length - 1; i++) {
+                node = node.getChild(segments[i]);
+                if (node == null) {
+                    break;
+                }
+                if (folder.length() > 0) {
+                    folder.append('/');
+                }
+                folder.append(segments[i]);
+                if (node.marker) {
+                    result.add(EmptyFoldersUtility.convertReal2Dlibra(folder.toString()));
+                }
+            }
+            return result;
+        }
+
+
+        /**
+         * Return the number of files and empty folder markers.
+         * 
+         * @return number of entries
+         */
+        public synchronized int size() {
+            return root.entries;
+        }
+
+
+        private static String[] split(String path) {
+            int start = path.startsWith("/") ? 1 : 0;
+            int end = path.endsWith("/") ? path.length() - 1 : path.length();
+            if (start >= end) {
+                return new String[0];
+            }
+            return path.substring(start, end).split("/");
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Bloom filters of the file paths stored in research objects, used to answer that a file does not exist without
+ * connecting to dLibra or the database.
+ * 
+ * A filter is built from all files of the RO edition and sized for twice as many paths. Paths of files written later
+ * are added to it, and a filter that becomes full is discarded so that it is rebuilt. Deleted files stay in the
+ * filter, which only makes it answer "maybe" more often. A filter built concurrently with a write is not cached,
+ * because it could miss the new file. Files written by other instances are not added, so a filter expires like the
+ * edition files index it is built from, and answers "no" for such a file only until then.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ExistingPathsFilter {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ExistingPathsFilter.class);
+
+    /** Default maximum number of ROs with a filter. */
+    public static final long DEFAULT_MAX_FILTERS = 1000;
+
+    /** Default probability that a filter answers "maybe" for a file that does not exist. */
+    public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /** Default time after which a filter is built again, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = EditionFilesIndex.DEFAULT_EXPIRY;
+
+    /** Minimum number of paths a filter is sized for. */
+    private static final int MIN_CAPACITY = 64;
+
+    /** Path encoding. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Probability that a filter answers "maybe" for a file that does not exist. */
+    private final double falsePositiveProbability;
+
+    /** RO URI -> filter. */
+    private final StampedCache<URI, PathFilter> filters;
+
+    /** Number of lookups answered "no" by a filter. */
+    private final AtomicLong negatives = new AtomicLong();
+
+    /** Number of lookups answered "maybe" by a filter, for files that exist. */
+    private final AtomicLong truePositives = new AtomicLong();
+
+    /** Number of lookups answered "maybe" by a filter, for files that do not exist. */
+    private final AtomicLong falsePositives = new AtomicLong();
+
+
+    /**
+     * The filter of one RO.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private static class PathFilter {
+
+        /** dLibra edition id. */
+        private final long editionId;
+
+        /** The Bloom filter. */
+        private final BloomFilter<byte[]> filter;
+
+        /** Number of paths the filter is sized for. */
+        private final int capacity;
+
+        /** Number of paths put in the filter. */
+        private int size = 0;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param editionId
+         *            dLibra edition id
+         * @param capacity
+         *            number of paths the filter is sized for
+         * @param falsePositiveProbability
+         *            false positive probability at full capacity
+         */
+        public PathFilter(long editionId, int capacity, double falsePositiveProbability) {
+            this.editionId = editionId;
+            this.capacity = capacity;
+            this.filter = BloomFilter.create(Funnels.byteArrayFunnel(), capacity, falsePositiveProbability);
+        }
+
+
+        /**
+         * Add a path.
+         * 
+         * @param path
+         *            normalized file path
+         * @return false if the filter is full
+         */
+        public synchronized boolean put(String path) {
+            filter.put(path.getBytes(UTF8));
+            return ++size <= capacity;
+        }
+
+
+        public synchronized boolean mightContain(String path) {
+            return filter.mightContain(path.getBytes(UTF8));
+        }
+    }
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxFilters
+     *            maximum number of ROs with a filter
+     * @param falsePositiveProbability
+     *            probability that a full filter answers "maybe" for a file that does not exist
+     * @param expiry
+     *            time after which a filter is built again, in milliseconds
+     */
+    public ExistingPathsFilter(long maxFilters, double falsePositiveProbability, long expiry) {
+        this.falsePositiveProbability = falsePositiveProbability;
+        Cache<URI, PathFilter> cache = CacheBuilder.newBuilder().maximumSize(maxFilters)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).build();
+        this.filters = new StampedCache<URI, PathFilter>(cache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public ExistingPathsFilter() {
+        this(DEFAULT_MAX_FILTERS, DEFAULT_FALSE_POSITIVE_PROBABILITY, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Check if a file may exist.
+     * 
+     * @param ro
+     *            RO URI
+     * @param editionId
+     *            dLibra edition id of the RO
+     * @param path
+     *            file path
+     * @return false if the file does not exist, true if it may exist, null if there is no filter for the RO edition
+     */
+    public Boolean mightContain(URI ro, long editionId, String path) {
+        PathFilter filter = filters.peek(ro.normalize());
+        if (filter == null || filter.editionId != editionId) {
+            return null;
+        }
+        boolean result = filter.mightContain(normalize(path));
+        if (!result) {
+            negatives.incrementAndGet();
+        }
+        return result;
+    }
+
+
+    /**
+     * Record the result of checking in dLibra a file for which the filter answered "maybe".
+     * 
+     * @param exists
+     *            does the file exist
+     */
+    public void recordPositive(boolean exists) {
+        if (exists) {
+            truePositives.incrementAndGet();
+        } else {
+            falsePositives.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Is there a filter for an RO edition.
+     * 
+     * @param ro
+     *            RO URI
+     * @param editionId
+     *            dLibra edition id of the RO
+     * @return true if the RO edition has a filter
+     */
+    public boolean contains(URI ro, long editionId) {
+        PathFilter filter = filters.peek(ro.normalize());
+        return filter != null && filter.editionId == editionId;
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(URI, long, Collection, long)} before starting to load the files of an
+     * edition.
+     * 
+     * @param ro
+     *            RO URI
+     * @return the current modification stamp of the RO
+     */
+    public long getStamp(URI ro) {
+        return filters.getStamp(ro.normalize());
+    }
+
+
+    /**
+     * Build and store the filter of an RO, unless a file has been written to it since the stamp was taken.
+     * 
+     * @param ro
+     *            RO URI
+     * @param editionId
+     *            dLibra edition id
+     * @param paths
+     *            paths of all files of the edition
+     * @param stamp
+     *            value of {@link #getStamp(URI)} taken before the files were loaded
+     */
+    public void put(URI ro, long editionId, Collection<String> paths, long stamp) {
+        PathFilter filter = new PathFilter(editionId, Math.max(MIN_CAPACITY, paths.size() * 2),
+                falsePositiveProbability);
+        for (String path : paths) {
+            filter.put(normalize(path));
+        }
+        if (!filters.put(ro.normalize(), filter, stamp)) {
+            LOG.debug(String.format("%s was modified while being filtered, not caching", ro));
+        }
+    }
+
+
+    /**
+     * Record that a file has been written. If the RO has a filter of another edition, it is discarded.
+     * 
+     * @param ro
+     *            RO URI
+     * @param editionId
+     *            dLibra edition id of the RO
+     * @param path
+     *            file path
+     */
+    public void add(URI ro, long editionId, String path) {
+        filters.touch(ro.normalize());
+        PathFilter filter = filters.peek(ro.normalize());
+        if (filter == null) {
+            return;
+        }
+        if (filter.editionId != editionId) {
+            LOG.debug(String.format("Path filter of %s is of edition %d, not %d, discarding", ro, filter.editionId,
+                editionId));
+            filters.invalidate(ro.normalize());
+        } else if (!filter.put(normalize(path))) {
+            LOG.debug(String.format("Path filter of %s is full, discarding", ro));
+            filters.invalidate(ro.normalize());
+        }
+    }
+
+
+    /**
+     * Remove the filter of an RO.
+     * 
+     * @param ro
+     *            RO URI
+     */
+    public void invalidate(URI ro) {
+        filters.invalidate(ro.normalize());
+    }
+
+
+    /**
+     * Remove all filters.
+     */
+    public void invalidateAll() {
+        filters.invalidateAll();
+    }
+
+
+    public long getNegativeCount() {
+        return negatives.get();
+    }
+
+
+    public long getTruePositiveCount() {
+        return truePositives.get();
+    }
+
+
+    public long getFalsePositiveCount() {
+        return falsePositives.get();
+    }
+
+
+    /**
+     * Return the ratio of lookups of files that do not exist that the filters answered "maybe".
+     * 
+     * @return false positive rate, 0.0 if there were no such lookups
+     */
+    public double getFalsePositiveRate() {
+        long total = negatives.get() + falsePositives.get();
+        return total == 0 ? 0.0 : (double) falsePositives.get() / total;
+    }
+
+
+    /**
+     * Return the number of ROs with a filter.
+     * 
+     * @return number of filters
+     */
+    public long size() {
+        return filters.size();
+    }
+
+
+    private static String normalize(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+}
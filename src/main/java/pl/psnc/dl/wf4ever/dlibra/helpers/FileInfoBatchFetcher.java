@@ -0,0 +1,169 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.common.Id;
+import pl.psnc.dlibra.common.Info;
+import pl.psnc.dlibra.common.InputFilter;
+import pl.psnc.dlibra.common.OutputFilter;
+import pl.psnc.dlibra.metadata.EditionFilter;
+import pl.psnc.dlibra.metadata.EditionId;
+import pl.psnc.dlibra.metadata.FileFilter;
+import pl.psnc.dlibra.metadata.FileInfo;
+import pl.psnc.dlibra.metadata.FileManager;
+import pl.psnc.dlibra.metadata.PublicationManager;
+import pl.psnc.dlibra.metadata.VersionId;
+import pl.psnc.dlibra.metadata.VersionInfo;
+import pl.psnc.dlibra.service.DLibraException;
+
+/**
+ * Fetches the {@link VersionInfo} and {@link FileInfo} of many file versions with a constant number of RMI calls.
+ * 
+ * dLibra filters cannot select an arbitrary list of ids, so the infos are requested for a whole edition, with one
+ * call for all version infos and one call for all file infos. Versions that the edition-wide calls did not return
+ * are fetched one by one.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class FileInfoBatchFetcher {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(FileInfoBatchFetcher.class);
+
+    /** Number of edition-wide calls made by all fetchers. */
+    private static final AtomicLong BATCH_CALLS = new AtomicLong();
+
+    /** Number of single-object calls made by all fetchers because a batch call didn't return an object. */
+    private static final AtomicLong SINGLE_CALLS = new AtomicLong();
+
+    /** dLibra publication manager. */
+    private final PublicationManager publicationManager;
+
+    /** dLibra file manager. */
+    private final FileManager fileManager;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param publicationManager
+     *            dLibra publication manager
+     * @param fileManager
+     *            dLibra file manager
+     */
+    public FileInfoBatchFetcher(PublicationManager publicationManager, FileManager fileManager) {
+        this.publicationManager = publicationManager;
+        this.fileManager = fileManager;
+    }
+
+
+    /**
+     * Fetch the infos of all file versions of an edition.
+     * 
+     * @param editionId
+     *            edition id
+     * @return file paths, starting with "/", mapped to entries with both infos set
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, EditionFilesIndex.Entry> fetchEdition(EditionId editionId)
+            throws RemoteException, DLibraException {
+        List<Id> ids = (List<Id>) publicationManager.getObjects(new EditionFilter(editionId),
+            new OutputFilter(VersionId.class)).getResultIds();
+        BATCH_CALLS.incrementAndGet();
+        List<VersionId> versionIds = new ArrayList<VersionId>(ids.size());
+        for (Id id : ids) {
+            versionIds.add((VersionId) id);
+        }
+        Map<String, EditionFilesIndex.Entry> result = new LinkedHashMap<String, EditionFilesIndex.Entry>();
+        for (EditionFilesIndex.Entry entry : fetch(editionId, versionIds)) {
+            result.put(entry.getFileInfo().getFullPath(), entry);
+        }
+        return result;
+    }
+
+
+    /**
+     * Fetch the infos of the given file versions, all of which belong to one edition.
+     * 
+     * @param editionId
+     *            edition to which the versions belong
+     * @param versionIds
+     *            file version ids
+     * @return entries with both infos set, in the order of version ids
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    public List<EditionFilesIndex.Entry> fetch(EditionId editionId, Collection<VersionId> versionIds)
+            throws RemoteException, DLibraException {
+        List<EditionFilesIndex.Entry> result = new ArrayList<EditionFilesIndex.Entry>(versionIds.size());
+        if (versionIds.isEmpty()) {
+            return result;
+        }
+        Map<Id, VersionInfo> versionInfos = new HashMap<Id, VersionInfo>();
+        for (Info info : fileManager.getObjects(new FileFilter().setEditionId(editionId),
+            new OutputFilter(VersionInfo.class, List.class)).getResultInfos()) {
+            versionInfos.put(info.getId(), (VersionInfo) info);
+        }
+        Map<Id, FileInfo> fileInfos = new HashMap<Id, FileInfo>();
+        for (Info info : fileManager.getObjects(new FileFilter().setEditionId(editionId),
+            new OutputFilter(FileInfo.class, List.class)).getResultInfos()) {
+            fileInfos.put(info.getId(), (FileInfo) info);
+        }
+        BATCH_CALLS.addAndGet(2);
+
+        int fallbacks = 0;
+        for (VersionId versionId : versionIds) {
+            VersionInfo versionInfo = versionInfos.get(versionId);
+            if (versionInfo == null) {
+                versionInfo = (VersionInfo) fileManager.getObjects(new InputFilter(versionId),
+                    new OutputFilter(VersionInfo.class)).getResultInfo();
+                fallbacks++;
+            }
+            FileInfo fileInfo = fileInfos.get(versionInfo.getFileId());
+            if (fileInfo == null) {
+                fileInfo = (FileInfo) fileManager.getObjects(new FileFilter(versionInfo.getFileId()),
+                    new OutputFilter(FileInfo.class)).getResultInfo();
+                fallbacks++;
+            }
+            result.add(new EditionFilesIndex.Entry(versionId, fileInfo, versionInfo));
+        }
+        if (fallbacks > 0) {
+            SINGLE_CALLS.addAndGet(fallbacks);
+            LOG.debug(String.format("Fetched %d infos of edition %d one by one", fallbacks, editionId.getId()));
+        }
+        return result;
+    }
+
+
+    /**
+     * Return the number of edition-wide calls made by all fetchers.
+     * 
+     * @return number of calls
+     */
+    public static long getBatchCallCount() {
+        return BATCH_CALLS.get();
+    }
+
+
+    /**
+     * Return the number of single-object calls made by all fetchers for objects missing from edition-wide results.
+     * 
+     * @return number of calls
+     */
+    public static long getSingleCallCount() {
+        return SINGLE_CALLS.get();
+    }
+
+}
@@ -3,31 +3,44 @@ package pl.psnc.dl.wf4ever.dlibra.helpers;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.rmi.RemoteException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.TransformerException;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
 import pl.psnc.dl.wf4ever.dl.ResourceMetadata;
 import pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObject;
-import pl.psnc.dlibra.common.Id;
+import pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObjectFile;
 import pl.psnc.dlibra.common.InputFilter;
 import pl.psnc.dlibra.common.OutputFilter;
 import pl.psnc.dlibra.content.ContentServer;
-import pl.psnc.dlibra.metadata.EditionFilter;
 import pl.psnc.dlibra.metadata.EditionId;
 import pl.psnc.dlibra.metadata.File;
 import pl.psnc.dlibra.metadata.FileFilter;
@@ -35,6 +48,7 @@ import pl.psnc.dlibra.metadata.FileInfo;
 import pl.psnc.dlibra.metadata.FileManager;
 import pl.psnc.dlibra.metadata.PublicationId;
 import pl.psnc.dlibra.metadata.PublicationManager;
+import pl.psnc.dlibra.metadata.Version;
 import pl.psnc.dlibra.metadata.VersionId;
 import pl.psnc.dlibra.metadata.VersionInfo;
 import pl.psnc.dlibra.service.AccessDeniedException;
@@ -45,6 +59,12 @@ public class FilesHelper {
 
     private final static Logger logger = Logger.getLogger(FilesHelper.class);
 
+    /** How many times to look for a cached zip archive when concurrent builds of it fail. */
+    private static final int ZIP_CACHE_ATTEMPTS = 3;
+
+    /** MIME type of files uploaded in bulk without a type. */
+    public static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
     private final DLibraDataSource dLibra;
 
     private final PublicationManager publicationManager;
@@ -53,6 +73,16 @@ public class FilesHelper {
 
     private final ContentServer contentServer;
 
+    private final EditionFilesIndex filesIndex;
+
+    private final EditionPathIndex pathIndex;
+
+    private final ExistingPathsFilter pathsFilter;
+
+    private final ResourceMetadataCache metadataCache;
+
+    private final FileInfoBatchFetcher batchFetcher;
+
 
     public FilesHelper(DLibraDataSource dLibraDataSource)
             throws RemoteException {
@@ -61,6 +91,11 @@ public class FilesHelper {
         this.publicationManager = dLibraDataSource.getMetadataServer().getPublicationManager();
         this.fileManager = dLibraDataSource.getMetadataServer().getFileManager();
         this.contentServer = dLibraDataSource.getContentServer();
+        this.filesIndex = DLibraDataSource.getEditionFilesIndex();
+        this.pathIndex = DLibraDataSource.getEditionPathIndex();
+        this.pathsFilter = DLibraDataSource.getExistingPathsFilter();
+        this.metadataCache = DLibraDataSource.getResourceMetadataCache();
+        this.batchFetcher = new FileInfoBatchFetcher(publicationManager, fileManager);
     }
 
 
@@ -77,8 +112,12 @@ public class FilesHelper {
      */
     public List<String> getFilePathsInFolder(ResearchObject ro, String folder)
             throws RemoteException, DLibraException {
+        if (ro.isFilesMirrored()) {
+            return getMirroredFilePathsInFolder(ro, folder);
+        }
         ArrayList<String> result = new ArrayList<String>();
-        for (FileInfo fileInfo : getFilesInFolder(ro, folder).values()) {
+        for (EditionFilesIndex.Entry entry : getFilesInFolder(ro, folder)) {
+            FileInfo fileInfo = entry.getFileInfo();
             if (EmptyFoldersUtility.isDlibraPath(fileInfo.getFullPath())) {
                 result.add(EmptyFoldersUtility.convertDlibra2Real(fileInfo.getFullPath()));
             } else {
@@ -89,29 +128,59 @@ public class FilesHelper {
     }
 
 
+    /**
+     * Returns filepaths of all files in a given folder, using the file metadata mirrored in the database.
+     * 
+     * @param ro
+     *            research object with mirrored files
+     * @param folder
+     *            If null, all files in the publication will be returned
+     * @return List of filepaths, starting with "/"
+     * @throws IdNotFoundException
+     *             the folder does not exist
+     */
+    private List<String> getMirroredFilePathsInFolder(ResearchObject ro, String folder)
+            throws IdNotFoundException {
+        ArrayList<String> result = new ArrayList<String>();
+        String prefix = "";
+        if (folder != null) {
+            prefix = folder.endsWith("/") ? folder : folder.concat("/");
+            if (ResearchObjectFile.find(ro.getUri(), EmptyFoldersUtility.convertReal2Dlibra(prefix)) != null) {
+                // empty folder
+                return result;
+            }
+        }
+        for (ResearchObjectFile file : ResearchObjectFile.findByPathPrefix(ro.getUri(), prefix)) {
+            if (EmptyFoldersUtility.isDlibraPath(file.getPath())) {
+                result.add(EmptyFoldersUtility.convertDlibra2Real("/" + file.getPath()));
+            } else {
+                result.add("/" + file.getPath());
+            }
+        }
+        if (folder != null && result.isEmpty()) {
+            throw new IdNotFoundException(folder);
+        }
+        return result;
+    }
+
+
     /**
      * 
      * @param groupPublicationName
      * @param publicationName
      * @param folder
-     * @return FileInfo will have paths starting with "/"
+     * @return index entries, FileInfo will have paths starting with "/"
      * @throws RemoteException
      * @throws DLibraException
      */
-    private Map<VersionId, FileInfo> getFilesInFolder(ResearchObject ro, String folder)
+    private List<EditionFilesIndex.Entry> getFilesInFolder(ResearchObject ro, String folder)
             throws RemoteException, DLibraException {
-        Map<VersionId, FileInfo> result = new HashMap<VersionId, FileInfo>();
+        List<EditionFilesIndex.Entry> result = new ArrayList<EditionFilesIndex.Entry>();
         if (folder != null && !folder.endsWith("/"))
             folder = folder.concat("/");
 
-        List<Id> versionIds = (List<Id>) publicationManager.getObjects(
-            new EditionFilter(new EditionId(dLibra.getDlEditionId(ro))), new OutputFilter(VersionId.class))
-                .getResultIds();
-        for (Id id : versionIds) {
-            VersionId versionId = (VersionId) id;
-
-            FileInfo fileInfo = (FileInfo) fileManager.getObjects(new InputFilter(versionId),
-                new OutputFilter(FileInfo.class)).getResultInfo();
+        for (EditionFilesIndex.Entry entry : getEditionFiles(ro).values()) {
+            FileInfo fileInfo = entry.getFileInfo();
 
             String filePath = fileInfo.getFullPath();
             if (EmptyFoldersUtility.isDlibraPath(filePath)
@@ -121,7 +190,7 @@ public class FilesHelper {
                 return result;
             }
             if (folder == null || filePath.startsWith("/" + folder)) {
-                result.put(versionId, fileInfo);
+                result.add(entry);
             }
         }
 
@@ -133,6 +202,209 @@ public class FilesHelper {
     }
 
 
+    /**
+     * Returns all files of the RO edition, loading them from dLibra only if the edition is not in the edition files
+     * index.
+     * 
+     * @param ro
+     *            research object
+     * @return file paths, starting with "/", mapped to index entries
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    private Map<String, EditionFilesIndex.Entry> getEditionFiles(ResearchObject ro)
+            throws RemoteException, DLibraException {
+        long editionId = dLibra.getDlEditionId(ro);
+        Map<String, EditionFilesIndex.Entry> files = filesIndex.get(editionId);
+        if (files != null) {
+            return files;
+        }
+        long stamp = filesIndex.getStamp(editionId);
+        files = batchFetcher.fetchEdition(new EditionId(editionId));
+        logger.debug(String.format("Indexed %d files of edition %d", files.size(), editionId));
+        return filesIndex.put(editionId, files, stamp);
+    }
+
+
+    /**
+     * Returns the folder structure of the RO edition, building it from the edition files if the edition is not in the
+     * edition path index.
+     * 
+     * @param ro
+     *            research object
+     * @return the path trie
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    private EditionPathIndex.PathTrie getPathTrie(ResearchObject ro)
+            throws RemoteException, DLibraException {
+        long editionId = dLibra.getDlEditionId(ro);
+        EditionPathIndex.PathTrie trie = pathIndex.get(editionId);
+        if (trie != null) {
+            return trie;
+        }
+        long stamp = pathIndex.getStamp(editionId);
+        return pathIndex.put(editionId, getEditionFiles(ro).keySet(), stamp);
+    }
+
+
+    /**
+     * Copies the file metadata of the RO edition to the database, unless it is already there. Called only when the RO
+     * files are written, so that reads do not write to the database, and only if {@link ResearchObjectFile} is mapped.
+     * The digests are not copied.
+     * 
+     * The RO row is locked before the files are copied, and the files are checked again with a locking read, so that
+     * concurrent first writes of the same RO do not insert the same paths twice.
+     * 
+     * @param ro
+     *            research object
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    private void ensureMirrored(ResearchObject ro)
+            throws RemoteException, DLibraException {
+        if (ResearchObjectFile.isMapped() && !ro.isFilesMirrored()) {
+            if (ro.lock() && ResearchObjectFile.exists(ro.getUri(), true)) {
+                logger.debug("Files of " + ro.getUri() + " have been mirrored by another transaction");
+            } else {
+                int differences = updateMirror(ro, getEditionFiles(ro));
+                logger.debug(String.format("Mirrored %d files of %s", differences, ro.getUri()));
+            }
+            ro.setFilesMirrored(true);
+        }
+    }
+
+
+    /**
+     * Removes the file metadata of the RO from the database. Must be called when the edition id of the RO is reset or
+     * reassigned, the files of the new edition are mirrored on the next write. Also called when the RO is deleted.
+     * 
+     * @param ro
+     *            research object
+     */
+    public void clearMirror(ResearchObject ro) {
+        if (ro.isFilesMirrored()) {
+            ResearchObjectFile.deleteByResearchObject(ro.getUri());
+            ro.setFilesMirrored(false);
+        }
+    }
+
+
+    /**
+     * Compares the file metadata mirrored in the database with the files of the RO edition in dLibra, and fixes the
+     * differences.
+     * 
+     * @param ro
+     *            research object
+     * @return number of files that were missing, different or superfluous in the database
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    public int reconcileMirror(ResearchObject ro)
+            throws RemoteException, DLibraException {
+        if (!ro.isFilesMirrored()) {
+            return 0;
+        }
+        long editionId = dLibra.getDlEditionId(ro);
+        int differences = updateMirror(ro, batchFetcher.fetchEdition(new EditionId(editionId)));
+        if (differences > 0) {
+            logger.warn(String.format("Found %d differences between the files of %s and edition %d", differences,
+                ro.getUri(), editionId));
+        }
+        return differences;
+    }
+
+
+    /**
+     * Makes the file metadata mirrored in the database equal to the given files.
+     * 
+     * @param ro
+     *            research object
+     * @param files
+     *            all files of the RO edition
+     * @return number of rows inserted, updated or deleted
+     */
+    private int updateMirror(ResearchObject ro, Map<String, EditionFilesIndex.Entry> files) {
+        Map<String, ResearchObjectFile> rows = new HashMap<String, ResearchObjectFile>();
+        for (ResearchObjectFile row : ResearchObjectFile.findByResearchObject(ro.getUri())) {
+            rows.put(row.getPath(), row);
+        }
+        int differences = 0;
+        for (EditionFilesIndex.Entry entry : files.values()) {
+            String path = entry.getFileInfo().getFullPath().substring(1);
+            ResearchObjectFile row = rows.remove(path);
+            if (row == null) {
+                row = new ResearchObjectFile(ro.getUri(), path);
+            } else if (row.getDlVersionId() == entry.getVersionId().getId()) {
+                continue;
+            }
+            row.setDlVersionId(entry.getVersionId().getId());
+            row.setDlFileId(entry.getFileInfo().getId().getId());
+            row.setSize(entry.getVersionInfo().getSize());
+            row.setLastModified(entry.getVersionInfo().getLastModificationDate());
+            row.setMimeType(entry.getFileInfo().getMimeType());
+            row.setChecksum(null);
+            row.save();
+            differences++;
+        }
+        for (ResearchObjectFile row : rows.values()) {
+            row.delete();
+            differences++;
+        }
+        return differences;
+    }
+
+
+    /**
+     * Stores the metadata of a new file version in the database, if the RO files are mirrored. The MIME type of an
+     * existing file does not change, like in dLibra.
+     * 
+     * @param ro
+     *            research object
+     * @param filePath
+     *            file path
+     * @param version
+     *            the new version
+     * @param metadata
+     *            metadata of the new version
+     */
+    private void mirrorVersion(ResearchObject ro, String filePath, Version version, ResourceMetadata metadata) {
+        if (!ro.isFilesMirrored()) {
+            return;
+        }
+        ResearchObjectFile row = ResearchObjectFile.find(ro.getUri(), filePath);
+        if (row == null) {
+            row = new ResearchObjectFile(ro.getUri(), filePath);
+            row.setMimeType(metadata.getMimeType());
+        }
+        row.setDlVersionId(version.getId().getId());
+        row.setDlFileId(version.getFileId().getId());
+        row.setSize(metadata.getSize());
+        row.setChecksum(metadata.getChecksum());
+        row.setLastModified(metadata.getLastModified().toDate());
+        row.save();
+    }
+
+
+    /**
+     * Removes a file from the database, if the RO files are mirrored.
+     * 
+     * @param ro
+     *            research object
+     * @param filePath
+     *            file path
+     */
+    private void unmirrorFile(ResearchObject ro, String filePath) {
+        if (!ro.isFilesMirrored()) {
+            return;
+        }
+        ResearchObjectFile row = ResearchObjectFile.find(ro.getUri(), filePath);
+        if (row != null) {
+            row.delete();
+        }
+    }
+
+
     /**
      * Returns input stream for a zipped content of file in a publication that are inside a given folder. Includes
      * manifest.rdf.
@@ -140,57 +412,95 @@ public class FilesHelper {
      * @param publicationName
      * @param folderNotStandardized
      * @return
-     * @throws RemoteException
+     * @throws IOException
+     *             when interrupted while waiting for a cached zip archive
      * @throws DLibraException
+     * @throws RejectedExecutionException
+     *             when there are too many zip exports in progress
      */
     public InputStream getZippedFolder(final ResearchObject ro, String folderNotStandardized)
-            throws RemoteException, DLibraException {
+            throws IOException, DLibraException {
         final String folder = (folderNotStandardized == null ? null
                 : (folderNotStandardized.endsWith("/") ? folderNotStandardized : folderNotStandardized.concat("/")));
-        final Map<VersionId, FileInfo> fileVersionsAndInfos = getFilesInFolder(ro, folder);
-
-        PipedInputStream in = new PipedInputStream();
-        final PipedOutputStream out;
-        try {
-            out = new PipedOutputStream(in);
-        } catch (IOException e) {
-            throw new RuntimeException("This should never happen", e);
+        final List<EditionFilesIndex.Entry> entries = getFilesInFolder(ro, folder);
+
+        ZipArchiveCache archiveCache = DLibraDataSource.getZipArchiveCache();
+        ZipArchiveCache.Build build = null;
+        if (archiveCache != null) {
+            String key = ZipArchiveCache.createKey(ro.getDlEditionId(), folder, entries);
+            // if another build fails, one of the clients waiting for it will start a new one, all attempts together
+            // wait no longer than a single build timeout
+            long deadline = System.currentTimeMillis() + archiveCache.getBuildTimeout();
+            for (int attempt = 0; attempt < ZIP_CACHE_ATTEMPTS && build == null; attempt++) {
+                InputStream cached = archiveCache.get(key, Math.max(0, deadline - System.currentTimeMillis()));
+                if (cached != null) {
+                    logger.debug("Returning a cached zip archive " + key);
+                    return cached;
+                }
+                try {
+                    build = archiveCache.startBuild(key);
+                } catch (IOException e) {
+                    logger.warn("Could not cache zip archive " + key + ", streaming it directly", e);
+                    break;
+                }
+            }
         }
+        // the archive is built into the cache file at the speed of dLibra and the client reads it from there, so
+        // that a slow client does not delay the clients waiting for the archive
+        InputStream following = null;
+        if (build != null) {
+            try {
+                following = build.follow();
+            } catch (IOException e) {
+                logger.warn("Could not read zip archive being built, streaming it directly", e);
+                build.abort();
+                build = null;
+            }
+        }
+        final ZipArchiveCache.Build archiveBuild = build;
 
-        final ZipOutputStream zipOut = new ZipOutputStream(out);
+        final ZipExportExecutor zipExportExecutor = DLibraDataSource.getZipExportExecutor();
+        BytePipe pipe = archiveBuild == null ? new BytePipe(zipExportExecutor.getPipeCapacity()) : null;
+        final OutputStream out = archiveBuild != null ? archiveBuild.getOutputStream() : pipe.getOutputStream();
+        final CountingOutputStream countingOut = new CountingOutputStream(out);
+        final ZipOutputStream zipOut = new ZipOutputStream(countingOut);
+        final ZipCompressionPolicy compressionPolicy = zipExportExecutor.getCompressionPolicy();
+        final long maxStoredSize = zipExportExecutor.getPrefetchBytes();
 
-        new Thread("edition zip downloader (" + ro.getDlEditionId() + ")") {
+        Runnable export = new Runnable() {
 
             @Override
             public void run() {
+                VersionStreamPrefetcher prefetcher = new VersionStreamPrefetcher(contentServer, entries,
+                        zipExportExecutor.getPrefetchExecutor(), zipExportExecutor.getPrefetchDepth(),
+                        zipExportExecutor.getPrefetchBytes());
+                boolean complete = false;
                 try {
-                    for (Map.Entry<VersionId, FileInfo> mapEntry : fileVersionsAndInfos.entrySet()) {
-                        VersionId versionId = mapEntry.getKey();
-                        String filePath = mapEntry.getValue().getFullPath().substring(1);
-                        ZipEntry entry = new ZipEntry(filePath);
-                        zipOut.putNextEntry(entry);
+                    for (EditionFilesIndex.Entry fileEntry : entries) {
+                        VersionId versionId = fileEntry.getVersionId();
                         logger.debug("Creating a version input stream for " + versionId.toString() + " edition "
                                 + ro.getDlEditionId());
-                        InputStream versionInputStream = new UnlockingInputStream(
-                                contentServer.getVersionInputStream(versionId), contentServer, versionId);
+                        InputStream versionInputStream = prefetcher.next();
                         logger.debug("Created a version input stream for " + versionId.toString());
                         try {
                             logger.debug("Start copying stream for " + versionId.toString());
-                            IOUtils.copy(versionInputStream, zipOut);
+                            writeZipEntry(zipOut, fileEntry, versionInputStream, compressionPolicy, maxStoredSize);
                             logger.debug("Finished copying stream for " + versionId.toString());
                         } finally {
                             logger.debug("Closing stream for " + versionId.toString());
                             versionInputStream.close();
                         }
                     }
-                } catch (IOException e) {
-                    logger.error("Zip transmission failed", e);
-                } catch (DLibraException e) {
-                    logger.error("Zip transmission failed", e);
+                    complete = true;
+                } catch (IOException | DLibraException e) {
+                    // rethrown so that the export executor counts the failure
+                    throw new RuntimeException("Zip transmission failed", e);
                 } finally {
+                    prefetcher.close();
                     try {
                         zipOut.close();
                     } catch (Exception e) {
+                        complete = false;
                         logger.warn("Could not close the ZIP file: " + e.getMessage());
                         try {
                             out.close();
@@ -198,10 +508,74 @@ public class FilesHelper {
                             logger.error("Could not close the ZIP output stream", e1);
                         }
                     }
+                    if (archiveBuild != null) {
+                        if (complete) {
+                            archiveBuild.commit();
+                        } else {
+                            archiveBuild.abort();
+                        }
+                    }
+                    zipExportExecutor.recordBytes(countingOut.getByteCount());
                 }
             };
-        }.start();
-        return in;
+        };
+        try {
+            zipExportExecutor.submit(dLibra.getUserLogin(), export);
+        } catch (RejectedExecutionException e) {
+            if (archiveBuild != null) {
+                archiveBuild.abort();
+                IOUtils.closeQuietly(following);
+            }
+            throw e;
+        }
+        return archiveBuild != null ? following : pipe.getInputStream();
+    }
+
+
+    /**
+     * Add a file to a zip archive, compressed as the compression policy decides.
+     * 
+     * A file that should not be compressed is written as a STORED entry if it is not larger than maxStoredSize. The
+     * zip format requires the size and CRC of such entry to be known in advance and dLibra only keeps MD5 digests, so
+     * the file is read into memory first. Larger files are written as deflated entries with no compression, which
+     * costs little CPU.
+     * 
+     * @param zipOut
+     *            zip archive
+     * @param fileEntry
+     *            file to add
+     * @param in
+     *            file contents
+     * @param compressionPolicy
+     *            compression policy
+     * @param maxStoredSize
+     *            maximum size of STORED entries
+     * @throws IOException
+     *             when reading or writing the file failed
+     */
+    private static void writeZipEntry(ZipOutputStream zipOut, EditionFilesIndex.Entry fileEntry, InputStream in,
+            ZipCompressionPolicy compressionPolicy, long maxStoredSize)
+            throws IOException {
+        String filePath = fileEntry.getFileInfo().getFullPath().substring(1);
+        long size = fileEntry.getVersionInfo() != null ? fileEntry.getVersionInfo().getSize() : -1;
+        int level = compressionPolicy.getCompressionLevel(filePath, fileEntry.getFileInfo().getMimeType(), size);
+        ZipEntry entry = new ZipEntry(filePath);
+        if (level == Deflater.NO_COMPRESSION && size >= 0 && size <= maxStoredSize) {
+            byte[] data = IOUtils.toByteArray(in);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+            zipOut.putNextEntry(entry);
+            zipOut.write(data);
+        } else {
+            zipOut.setLevel(level);
+            zipOut.putNextEntry(entry);
+            DLibraDataSource.getBufferPool().copy(in, zipOut, size);
+        }
+        zipOut.closeEntry();
     }
 
 
@@ -209,17 +583,174 @@ public class FilesHelper {
             throws IdNotFoundException, RemoteException, DLibraException {
         VersionId versionId = getVersionId(ro, filePath);
 
+        VersionContentCache contentCache = DLibraDataSource.getVersionContentCache();
+        if (contentCache != null) {
+            InputStream cached = contentCache.get(versionId.getId(), 0);
+            if (cached != null) {
+                logger.debug("Returning a cached version stream for version Id " + versionId.toString());
+                return cached;
+            }
+        }
         InputStream versionInputStream = new UnlockingInputStream(contentServer.getVersionInputStream(versionId),
                 contentServer, versionId);
         logger.debug("Returning a version stream for version Id " + versionId.toString() + " edition Id "
                 + ro.getDlEditionId());
-        return versionInputStream;
+        if (contentCache == null) {
+            return versionInputStream;
+        }
+        return contentCache.fill(versionId.getId(), getVersionSize(ro, filePath, versionId), versionInputStream);
     }
 
 
+    /**
+     * Return the size of a version recorded in dLibra, from the edition files index if it is there.
+     * 
+     * @param ro
+     *            research object
+     * @param filePath
+     *            file path
+     * @param versionId
+     *            version id of the file in the current edition
+     * @return size in bytes
+     * @throws RemoteException
+     *             dLibra is not available
+     * @throws DLibraException
+     *             dLibra error
+     */
+    private long getVersionSize(ResearchObject ro, String filePath, VersionId versionId)
+            throws RemoteException, DLibraException {
+        Map<String, EditionFilesIndex.Entry> files = filesIndex.get(ro.getDlEditionId());
+        EditionFilesIndex.Entry entry = files != null ? files.get("/" + filePath) : null;
+        if (entry != null && entry.getVersionInfo() != null
+                && entry.getVersionId().getId().equals(versionId.getId())) {
+            return entry.getVersionInfo().getSize();
+        }
+        VersionInfo versionInfo = (VersionInfo) fileManager.getObjects(new InputFilter(versionId),
+            new OutputFilter(VersionInfo.class)).getResultInfo();
+        return versionInfo.getSize();
+    }
+
+
+    /**
+     * Returns a part of the contents of a file.
+     * 
+     * A cached file is read from the offset directly. Otherwise, the beginning of the file is skipped with
+     * {@link InputStream#skip(long)} on the dLibra stream, so that the content server can avoid transferring the
+     * skipped bytes. If the stream cannot skip, the bytes are read and discarded.
+     * 
+     * @param ro
+     *            research object
+     * @param filePath
+     *            file path
+     * @param offset
+     *            position of the first byte to return
+     * @param length
+     *            maximum number of bytes to return, or -1 to read until the end of the file
+     * @return the file contents starting at offset, empty if offset is beyond the end of the file
+     * @throws IOException
+     *             when skipping the beginning of the file failed
+     * @throws DLibraException
+     */
+    public InputStream getFileContents(ResearchObject ro, String filePath, long offset, long length)
+            throws IOException, DLibraException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        }
+        InputStream in;
+        if (offset == 0) {
+            in = getFileContents(ro, filePath);
+        } else {
+            VersionId versionId = getVersionId(ro, filePath);
+            VersionContentCache contentCache = DLibraDataSource.getVersionContentCache();
+            in = contentCache != null ? contentCache.get(versionId.getId(), offset) : null;
+            if (in == null) {
+                in = new UnlockingInputStream(contentServer.getVersionInputStream(versionId), contentServer, versionId);
+                skip(in, offset);
+            }
+        }
+        return length >= 0 ? new BoundedInputStream(in, length) : in;
+    }
+
+
+    /**
+     * Skip the beginning of a stream, closing the stream if it fails.
+     * 
+     * @param in
+     *            input stream
+     * @param offset
+     *            number of bytes to skip
+     * @throws IOException
+     *             when skipping failed
+     */
+    private static void skip(InputStream in, long offset)
+            throws IOException {
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    if (in.read() == -1) {
+                        break;
+                    }
+                    n = 1;
+                }
+                skipped += n;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Checks if a file exists. Files that do not exist are usually ruled out by the existing paths filter of the RO,
+     * and the file metadata mirrored in the database, if any, is used for the others. If the RO has no filter, it is built from
+     * the files of the RO edition in dLibra, which already include files written by transactions that have not
+     * committed yet.
+     * 
+     * @param ro
+     *            research object
+     * @param filePath
+     *            file path
+     * @return true if the file exists
+     * @throws IdNotFoundException
+     *             the file does not exist
+     * @throws RemoteException
+     * @throws DLibraException
+     */
     public boolean fileExists(ResearchObject ro, String filePath)
             throws IdNotFoundException, RemoteException, DLibraException {
-        return getVersionId(ro, filePath) != null;
+        long editionId = dLibra.getDlEditionId(ro);
+        Boolean mightExist = pathsFilter.mightContain(ro.getUri(), editionId, filePath);
+        if (mightExist == null) {
+            long stamp = pathsFilter.getStamp(ro.getUri());
+            Map<String, EditionFilesIndex.Entry> files = getEditionFiles(ro);
+            pathsFilter.put(ro.getUri(), editionId, files.keySet(), stamp);
+            return files.containsKey("/" + filePath);
+        }
+        if (!mightExist) {
+            return false;
+        }
+        boolean exists = ro.isFilesMirrored() ? ResearchObjectFile.find(ro.getUri(), filePath) != null
+                : getEditionFiles(ro).containsKey("/" + filePath);
+        pathsFilter.recordPositive(exists);
+        return exists;
+    }
+
+
+    /**
+     * Checks if a file exists using only the edition files index, without connecting to the database or dLibra.
+     * 
+     * @param ro
+     *            research object with a known edition id
+     * @param filePath
+     *            file path
+     * @return true if the file exists, false if it doesn't, null if the RO edition is not indexed
+     */
+    public Boolean fileExistsIndexed(ResearchObject ro, String filePath) {
+        Map<String, EditionFilesIndex.Entry> files = filesIndex.get(ro.getDlEditionId());
+        return files != null ? files.containsKey("/" + filePath) : null;
     }
 
 
@@ -244,6 +775,7 @@ public class FilesHelper {
             throws IOException, DLibraException, TransformerException {
         PublicationId roVersionId = new PublicationId(dLibra.getDlROVersionId(ro));
         EditionId editionId = new EditionId(dLibra.getDlEditionId(ro));
+        ensureMirrored(ro);
 
         if (filePath.endsWith("/")) {
             // slash at the end means empty folder
@@ -252,43 +784,251 @@ public class FilesHelper {
         }
 
         VersionId versionId = getVersionIdSafe(ro, filePath);
-        VersionId createdVersionId = createNewVersion(versionId, mimeType, roVersionId, filePath);
+        Date lastModified = new Date();
+        Version createdVersion = createNewVersion(versionId, mimeType, roVersionId, filePath, lastModified);
+        VersionId createdVersionId = createdVersion.getId();
 
-        saveFileContents(inputStream, createdVersionId);
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+        CountingInputStream countingInputStream = new CountingInputStream(new DigestInputStream(inputStream, md5));
+        saveFileContents(countingInputStream, createdVersionId);
+        byte[] digest = md5.digest();
 
         if (versionId != null) {
             publicationManager.removeEditionVersion(editionId, versionId);
         }
         publicationManager.addEditionVersion(editionId, createdVersionId);
-        versionId = getVersionIdSafe(ro, filePath);
+        DLibraDataSource.invalidateEdition(editionId.getId());
+        pathIndex.add(editionId.getId(), filePath);
+        pathsFilter.add(ro.getUri(), editionId.getId(), filePath);
 
         deleteUnnecessaryEmptyFolders(ro, filePath);
 
-        VersionInfo versionInfo = (VersionInfo) fileManager.getObjects(new InputFilter(versionId),
-            new OutputFilter(VersionInfo.class)).getResultInfo();
-        return createResourceInfo(versionInfo, filePath, mimeType);
+        DigestVerifier digestVerifier = DLibraDataSource.getDigestVerifier();
+        if (digestVerifier != null) {
+            digestVerifier.verify(contentServer, createdVersionId, digest);
+        }
+        String name = filePath.substring(filePath.lastIndexOf('/') + 1);
+        ResourceMetadata metadata = new ResourceMetadata(filePath, name, getHex(digest),
+                countingInputStream.getByteCount(), "MD5", new DateTime(lastModified), mimeType);
+        metadataCache.put(createdVersionId.getId(), metadata);
+        mirrorVersion(ro, filePath, createdVersion, metadata);
+        return metadata;
+    }
+
+
+    /**
+     * Creates or updates many files of an RO at once.
+     * 
+     * The dLibra ids are resolved once and the file contents are uploaded in parallel by the upload executor. The
+     * workers only call dLibra, never Hibernate. The edition is modified only when all uploads have succeeded, in a
+     * single pass that also removes the empty folders that now contain files. An empty folder uploaded together with
+     * a file inside it is skipped.
+     * 
+     * If any upload fails, the remaining uploads are cancelled and the edition is not modified, so the RO does not
+     * change. The versions already created by the uploads that succeeded, and the files created for new paths, are not
+     * removed from dLibra, because they are never added to an edition. Like the previous versions of files replaced
+     * by {@link #createOrUpdateFile(ResearchObject, String, InputStream, String)}, they are not visible through the RO
+     * and only take storage space.
+     * 
+     * @param ro
+     *            research object
+     * @param contents
+     *            file paths mapped to file contents; all streams are closed
+     * @param mimeTypes
+     *            file paths mapped to MIME types, missing types are {@value #DEFAULT_MIME_TYPE}
+     * @return metadata of the files stored, in the order of contents
+     * @throws IOException
+     *             when reading the contents or writing them to dLibra failed
+     * @throws DLibraException
+     */
+    public List<ResourceMetadata> createOrUpdateFiles(ResearchObject ro, Map<String, InputStream> contents,
+            Map<String, String> mimeTypes)
+            throws IOException, DLibraException {
+        PublicationId roVersionId = new PublicationId(dLibra.getDlROVersionId(ro));
+        EditionId editionId = new EditionId(dLibra.getDlEditionId(ro));
+        Map<String, EditionFilesIndex.Entry> editionFiles = getEditionFiles(ro);
+        ensureMirrored(ro);
+
+        // dLibra paths of the empty folders that will contain files
+        Set<String> filledFolders = new HashSet<String>();
+        for (String filePath : contents.keySet()) {
+            String folder = filePath.endsWith("/") ? filePath.substring(0, filePath.length() - 1) : filePath;
+            while (folder.lastIndexOf("/") > 0) {
+                folder = folder.substring(0, folder.lastIndexOf("/"));
+                filledFolders.add(EmptyFoldersUtility.convertReal2Dlibra(folder));
+            }
+        }
+
+        ExecutorService executor = DLibraDataSource.getUploadExecutor();
+        Date lastModified = new Date();
+        List<VersionUpload> uploads = new ArrayList<VersionUpload>();
+        List<Future<VersionUpload>> futures = new ArrayList<Future<VersionUpload>>();
+        try {
+            for (Map.Entry<String, InputStream> content : contents.entrySet()) {
+                String filePath = content.getKey();
+                if (filePath.endsWith("/")) {
+                    filePath = EmptyFoldersUtility.convertReal2Dlibra(filePath);
+                    if (filledFolders.contains(filePath)) {
+                        logger.debug("Empty folder " + filePath + " will contain files, skipping");
+                        content.getValue().close();
+                        continue;
+                    }
+                }
+                String mimeType = mimeTypes.get(content.getKey());
+                EditionFilesIndex.Entry entry = editionFiles.get("/" + filePath);
+                VersionUpload upload = new VersionUpload(filePath, mimeType != null ? mimeType : DEFAULT_MIME_TYPE,
+                        content.getValue(), entry != null ? entry.getVersionId() : null, roVersionId, lastModified);
+                uploads.add(upload);
+                futures.add(executor.submit(upload));
+            }
+            for (Future<VersionUpload> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while uploading files");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    if (e.getCause() instanceof DLibraException) {
+                        throw (DLibraException) e.getCause();
+                    }
+                    throw new IOException("Uploading files failed", e.getCause());
+                }
+            }
+        } catch (IOException | DLibraException | RuntimeException e) {
+            for (Future<VersionUpload> future : futures) {
+                future.cancel(false);
+            }
+            for (VersionUpload upload : uploads) {
+                IOUtils.closeQuietly(upload.inputStream);
+            }
+            throw e;
+        }
+
+        List<ResourceMetadata> result = new ArrayList<ResourceMetadata>();
+        for (VersionUpload upload : uploads) {
+            if (upload.oldVersionId != null) {
+                publicationManager.removeEditionVersion(editionId, upload.oldVersionId);
+            }
+            publicationManager.addEditionVersion(editionId, upload.createdVersionId);
+            String name = upload.filePath.substring(upload.filePath.lastIndexOf('/') + 1);
+            ResourceMetadata metadata = new ResourceMetadata(upload.filePath, name, getHex(upload.digest),
+                    upload.size, "MD5", new DateTime(lastModified), upload.mimeType);
+            metadataCache.put(upload.createdVersionId.getId(), metadata);
+            mirrorVersion(ro, upload.filePath, upload.createdVersion, metadata);
+            result.add(metadata);
+        }
+        for (String folder : filledFolders) {
+            EditionFilesIndex.Entry entry = editionFiles.get("/" + folder);
+            if (entry != null) {
+                logger.debug(String.format("Removing empty folder, file version %s from edition %s",
+                    entry.getVersionId(), editionId));
+                publicationManager.removeEditionVersion(editionId, entry.getVersionId());
+                unmirrorFile(ro, folder);
+            }
+        }
+        DLibraDataSource.invalidateEdition(editionId.getId());
+        for (VersionUpload upload : uploads) {
+            pathIndex.add(editionId.getId(), upload.filePath);
+            pathsFilter.add(ro.getUri(), editionId.getId(), upload.filePath);
+        }
+        for (String folder : filledFolders) {
+            pathIndex.remove(editionId.getId(), folder);
+        }
+
+        DigestVerifier digestVerifier = DLibraDataSource.getDigestVerifier();
+        if (digestVerifier != null) {
+            for (VersionUpload upload : uploads) {
+                digestVerifier.verify(contentServer, upload.createdVersionId, upload.digest);
+            }
+        }
+        return result;
     }
 
 
+    /**
+     * Returns the metadata of a file, using the file metadata mirrored in the database if the RO files are mirrored,
+     * or the files of the RO edition otherwise. The metadata of a file version never changes, so it is returned from
+     * the resource metadata cache if possible.
+     * 
+     * @param ro
+     *            research object
+     * @param filePath
+     *            file path
+     * @return file metadata
+     * @throws RemoteException
+     * @throws IdNotFoundException
+     *             the file does not exist
+     * @throws AccessDeniedException
+     * @throws DLibraException
+     */
     public ResourceMetadata getFileInfo(ResearchObject ro, String filePath)
             throws RemoteException, IdNotFoundException, AccessDeniedException, DLibraException {
-        VersionId versionId = getVersionId(ro, filePath);
-        VersionInfo versionInfo = (VersionInfo) fileManager.getObjects(new InputFilter(versionId),
-            new OutputFilter(VersionInfo.class)).getResultInfo();
-        FileInfo fileInfo = (FileInfo) fileManager.getObjects(new FileFilter(versionInfo.getFileId()),
-            new OutputFilter(FileInfo.class)).getResultInfo();
-        return createResourceInfo(versionInfo, filePath, fileInfo.getMimeType());
+        if (!ro.isFilesMirrored()) {
+            EditionFilesIndex.Entry entry = getEditionFiles(ro).get("/" + filePath);
+            if (entry == null) {
+                throw new IdNotFoundException(filePath);
+            }
+            ResourceMetadata metadata = metadataCache.get(entry.getVersionId().getId());
+            if (metadata == null) {
+                VersionInfo versionInfo = entry.getVersionInfo();
+                String name = filePath.substring(filePath.lastIndexOf('/') + 1);
+                metadata = new ResourceMetadata(filePath, name, getHex(getFileDigest(entry.getVersionId())),
+                        versionInfo.getSize(), "MD5", new DateTime(versionInfo.getLastModificationDate()),
+                        entry.getFileInfo().getMimeType());
+                metadataCache.put(entry.getVersionId().getId(), metadata);
+            }
+            return metadata;
+        }
+        ResearchObjectFile file = ResearchObjectFile.find(ro.getUri(), filePath);
+        if (file == null) {
+            throw new IdNotFoundException(filePath);
+        }
+        ResourceMetadata metadata = metadataCache.get(file.getDlVersionId());
+        if (metadata != null) {
+            return metadata;
+        }
+        String checksum = file.getChecksum() != null ? file.getChecksum() : getHex(getFileDigest(new VersionId(file
+                .getDlVersionId())));
+        metadata = new ResourceMetadata(filePath, file.getName(), checksum, file.getSize(), "MD5", new DateTime(
+                file.getLastModified()), file.getMimeType());
+        metadataCache.put(file.getDlVersionId(), metadata);
+        return metadata;
     }
 
 
-    private ResourceMetadata createResourceInfo(VersionInfo versionInfo, String filePath, String mimeType)
+    /**
+     * Returns the metadata of a file if the RO edition is in the edition files index and the file version is in the
+     * resource metadata cache, without connecting to the database or dLibra.
+     * 
+     * @param ro
+     *            research object with a known edition id
+     * @param filePath
+     *            file path
+     * @return the metadata or null if it is not cached or the file does not exist
+     */
+    public ResourceMetadata getCachedFileInfo(ResearchObject ro, String filePath) {
+        Map<String, EditionFilesIndex.Entry> files = filesIndex.get(ro.getDlEditionId());
+        EditionFilesIndex.Entry entry = files != null ? files.get("/" + filePath) : null;
+        return entry != null ? metadataCache.get(entry.getVersionId().getId()) : null;
+    }
+
+
+    private byte[] getFileDigest(VersionId versionId)
             throws RemoteException, IdNotFoundException, AccessDeniedException, DLibraException {
-        String name = filePath.substring(filePath.lastIndexOf('/') + 1);
-        byte[] fileDigest = contentServer.getFileDigest(versionInfo.getId());
-        String digest = getHex(fileDigest);
-        long size = versionInfo.getSize();
-        DateTime lastModified = new DateTime(versionInfo.getLastModificationDate());
-        return new ResourceMetadata(filePath, name, digest, size, "MD5", lastModified, mimeType);
+        byte[] fileDigest = contentServer.getFileDigest(versionId);
+        VersionContentCache contentCache = DLibraDataSource.getVersionContentCache();
+        if (contentCache != null) {
+            contentCache.verify(versionId.getId(), fileDigest);
+        }
+        return fileDigest;
     }
 
 
@@ -302,13 +1042,11 @@ public class FilesHelper {
      */
     private void deleteUnnecessaryEmptyFolders(ResearchObject ro, String filePath)
             throws DLibraException, IOException, TransformerException {
-        String intermediateFilePath = filePath;
-        while (intermediateFilePath.lastIndexOf("/") > 0) {
-            intermediateFilePath = intermediateFilePath.substring(0, intermediateFilePath.lastIndexOf("/"));
+        for (String emptyFolder : getPathTrie(ro).getMarkedAncestors(filePath)) {
             try {
-                deleteFile(ro, EmptyFoldersUtility.convertReal2Dlibra(intermediateFilePath));
+                deleteFile(ro, emptyFolder);
             } catch (IdNotFoundException ex) {
-                // ok, this folder was not empty
+                // ok, removed in the meantime
             }
         }
     }
@@ -332,8 +1070,8 @@ public class FilesHelper {
     }
 
 
-    private VersionId createNewVersion(VersionId oldVersionId, String mimeType, PublicationId publicationId,
-            String filePath)
+    private Version createNewVersion(VersionId oldVersionId, String mimeType, PublicationId publicationId,
+            String filePath, Date date)
             throws IdNotFoundException, RemoteException, DLibraException {
         File file;
         if (oldVersionId != null) {
@@ -344,7 +1082,7 @@ public class FilesHelper {
         } else {
             file = new File(mimeType, publicationId, "/" + filePath);
         }
-        return fileManager.createVersion(file, 0, new Date(), "").getId();
+        return fileManager.createVersion(file, 0, date, "");
 
     }
 
@@ -362,12 +1100,7 @@ public class FilesHelper {
             throws RemoteException, IdNotFoundException, AccessDeniedException, DLibraException, IOException {
         OutputStream output = contentServer.getVersionOutputStream(versionId);
         try {
-            byte[] buffer = new byte[DLibraDataSource.BUFFER_SIZE];
-            int bytesRead = 0;
-
-            while ((bytesRead = inputStream.read(buffer)) > 0) {
-                output.write(buffer, 0, bytesRead);
-            }
+            DLibraDataSource.getBufferPool().copy(inputStream, output, -1);
         } finally {
             inputStream.close();
             output.close();
@@ -378,18 +1111,22 @@ public class FilesHelper {
     public void deleteFile(ResearchObject ro, String filePath)
             throws DLibraException, IOException, TransformerException {
         EditionId editionId = new EditionId(dLibra.getDlEditionId(ro));
+        ensureMirrored(ro);
 
+        EditionPathIndex.PathTrie trie = getPathTrie(ro);
+        List<String> removedPaths = new ArrayList<String>();
         boolean recreateEmptyFolder = false;
         String emptyFolder = "";
         try {
             VersionId versionId = getVersionId(ro, filePath);
 
             emptyFolder = filePath.substring(0, filePath.lastIndexOf("/") + 1);
-            if (!emptyFolder.isEmpty() && getFilePathsInFolder(ro, emptyFolder).size() == 1) {
+            if (!emptyFolder.isEmpty() && trie.countEntries(emptyFolder) == 1) {
                 recreateEmptyFolder = true;
             }
 
             publicationManager.removeEditionVersion(editionId, versionId);
+            removedPaths.add(filePath);
         } catch (IdNotFoundException ex) {
             // maybe it is a folder
             List<String> files = getFilePathsInFolder(ro, filePath);
@@ -400,6 +1137,7 @@ public class FilesHelper {
                     }
                     VersionId versionId = getVersionId(ro, file);
                     publicationManager.removeEditionVersion(editionId, versionId);
+                    removedPaths.add(file);
                 }
             } else {
                 // it must be an empty folder
@@ -409,6 +1147,7 @@ public class FilesHelper {
                     logger.debug(String.format("Removing empty folder, file version %s from edition %s", versionId,
                         editionId));
                     publicationManager.removeEditionVersion(editionId, versionId);
+                    removedPaths.add(filePath);
                 } catch (IdNotFoundException ex2) {
                     // if not, throw the original exception
                     logger.debug("Nothing to delete, error");
@@ -416,6 +1155,11 @@ public class FilesHelper {
                 }
             }
         }
+        DLibraDataSource.invalidateEdition(editionId.getId());
+        for (String removedPath : removedPaths) {
+            pathIndex.remove(editionId.getId(), removedPath);
+            unmirrorFile(ro, removedPath.startsWith("/") ? removedPath.substring(1) : removedPath);
+        }
 
         if (recreateEmptyFolder) {
             createOrUpdateFile(ro, emptyFolder, new ByteArrayInputStream(new byte[] {}), "text/plain");
@@ -428,10 +1172,105 @@ public class FilesHelper {
 
     public VersionId getVersionId(ResearchObject ro, String filePath)
             throws IdNotFoundException, RemoteException, DLibraException {
+        long editionId = dLibra.getDlEditionId(ro);
+        Map<String, EditionFilesIndex.Entry> files = filesIndex.get(editionId);
+        if (files != null) {
+            EditionFilesIndex.Entry entry = files.get("/" + filePath);
+            if (entry == null) {
+                throw new IdNotFoundException(filePath);
+            }
+            return entry.getVersionId();
+        }
         VersionId versionId = (VersionId) fileManager.getObjects(
-            new FileFilter().setEditionId(new EditionId(dLibra.getDlEditionId(ro))).setFileName("/" + filePath),
+            new FileFilter().setEditionId(new EditionId(editionId)).setFileName("/" + filePath),
             new OutputFilter(VersionId.class)).getResultId();
         return versionId;
     }
 
+
+    /**
+     * Creates a new version of a file and uploads its contents, without modifying the edition.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private class VersionUpload implements Callable<VersionUpload> {
+
+        /** File path. */
+        private final String filePath;
+
+        /** MIME type. */
+        private final String mimeType;
+
+        /** File contents. */
+        private final InputStream inputStream;
+
+        /** Version replaced, null for a new file. */
+        private final VersionId oldVersionId;
+
+        /** RO version publication. */
+        private final PublicationId roVersionId;
+
+        /** Modification date. */
+        private final Date lastModified;
+
+        /** Version created. */
+        private volatile Version createdVersion;
+
+        /** Id of the version created. */
+        private volatile VersionId createdVersionId;
+
+        /** MD5 of the contents. */
+        private volatile byte[] digest;
+
+        /** Size of the contents. */
+        private volatile long size;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param filePath
+         *            file path
+         * @param mimeType
+         *            MIME type
+         * @param inputStream
+         *            file contents
+         * @param oldVersionId
+         *            version replaced, null for a new file
+         * @param roVersionId
+         *            RO version publication
+         * @param lastModified
+         *            modification date
+         */
+        public VersionUpload(String filePath, String mimeType, InputStream inputStream, VersionId oldVersionId,
+                PublicationId roVersionId, Date lastModified) {
+            this.filePath = filePath;
+            this.mimeType = mimeType;
+            this.inputStream = inputStream;
+            this.oldVersionId = oldVersionId;
+            this.roVersionId = roVersionId;
+            this.lastModified = lastModified;
+        }
+
+
+        @Override
+        public VersionUpload call()
+                throws IOException, DLibraException {
+            createdVersion = createNewVersion(oldVersionId, mimeType, roVersionId, filePath, lastModified);
+            createdVersionId = createdVersion.getId();
+            MessageDigest md5;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is not supported", e);
+            }
+            CountingInputStream countingInputStream = new CountingInputStream(new DigestInputStream(inputStream, md5));
+            saveFileContents(countingInputStream, createdVersionId);
+            digest = md5.digest();
+            size = countingInputStream.getByteCount();
+            return this;
+        }
+    }
+
 }
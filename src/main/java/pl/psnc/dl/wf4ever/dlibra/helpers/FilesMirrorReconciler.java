@@ -0,0 +1,104 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.wf4ever.dl.DigitalLibraryException;
+import pl.psnc.dl.wf4ever.dl.NotFoundException;
+import pl.psnc.dl.wf4ever.dlibra.hibernate.HibernateUtil;
+import pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObjectFile;
+
+/**
+ * A job that compares the file metadata of all ROs mirrored in the database with dLibra and fixes the differences,
+ * i.e. made by other applications using the same dLibra instance. It is meant to be run periodically, for example
+ * with a {@link java.util.concurrent.ScheduledExecutorService}. Each RO is reconciled in a separate transaction.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class FilesMirrorReconciler implements Runnable {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(FilesMirrorReconciler.class);
+
+    /** Data source, which must have access to all ROs. */
+    private final DLibraDataSource dLibra;
+
+    /** Number of ROs checked. */
+    private final AtomicLong checked = new AtomicLong();
+
+    /** Number of ROs that had differences. */
+    private final AtomicLong drifted = new AtomicLong();
+
+    /** Number of files that were missing, different or superfluous. */
+    private final AtomicLong differences = new AtomicLong();
+
+    /** Number of ROs that could not be checked. */
+    private final AtomicLong failed = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param dLibra
+     *            data source, which must have access to all ROs
+     */
+    public FilesMirrorReconciler(DLibraDataSource dLibra) {
+        this.dLibra = dLibra;
+    }
+
+
+    @Override
+    public void run() {
+        List<URI> uris = new ArrayList<URI>();
+        try {
+            HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+            uris.addAll(ResearchObjectFile.findResearchObjectUris());
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+        } catch (RuntimeException e) {
+            HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().rollback();
+            LOG.error("Could not list the mirrored research objects", e);
+            return;
+        }
+        for (URI uri : uris) {
+            try {
+                int result = dLibra.reconcileFilesMirror(uri);
+                checked.incrementAndGet();
+                if (result > 0) {
+                    drifted.incrementAndGet();
+                    differences.addAndGet(result);
+                }
+            } catch (DigitalLibraryException | NotFoundException | RuntimeException e) {
+                failed.incrementAndGet();
+                LOG.warn("Could not reconcile the files of " + uri, e);
+            }
+        }
+        LOG.info(String.format("Reconciled the files of %d research objects, %d had differences", uris.size(),
+            drifted.get()));
+    }
+
+
+    public long getCheckedCount() {
+        return checked.get();
+    }
+
+
+    public long getDriftedCount() {
+        return drifted.get();
+    }
+
+
+    public long getDifferenceCount() {
+        return differences.get();
+    }
+
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+}
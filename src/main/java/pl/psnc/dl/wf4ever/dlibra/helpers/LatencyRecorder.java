@@ -0,0 +1,94 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Records the latencies of an operation and reports their percentiles. Only a fixed number of the most recent samples
+ * is kept.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class LatencyRecorder {
+
+    /** Default number of samples kept. */
+    public static final int DEFAULT_SAMPLES = 10000;
+
+    /** The most recent samples in nanoseconds, used as a ring buffer. */
+    private final long[] samples;
+
+    /** Number of samples recorded since the last reset. */
+    private long count = 0;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSamples
+     *            number of the most recent samples kept
+     */
+    public LatencyRecorder(int maxSamples) {
+        if (maxSamples <= 0) {
+            throw new IllegalArgumentException("At least one sample must be kept: " + maxSamples);
+        }
+        this.samples = new long[maxSamples];
+    }
+
+
+    /**
+     * Constructor with the default number of samples.
+     */
+    public LatencyRecorder() {
+        this(DEFAULT_SAMPLES);
+    }
+
+
+    /**
+     * Record a latency.
+     * 
+     * @param nanos
+     *            latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[(int) (count % samples.length)] = nanos;
+        count++;
+    }
+
+
+    /**
+     * Return a percentile of the samples kept, using the nearest rank method.
+     * 
+     * @param percentile
+     *            percentile, greater than 0 and not greater than 100
+     * @return latency in nanoseconds, 0 if there are no samples
+     */
+    public long getPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+
+    /**
+     * Discard all samples.
+     */
+    public synchronized void reset() {
+        count = 0;
+    }
+
+}
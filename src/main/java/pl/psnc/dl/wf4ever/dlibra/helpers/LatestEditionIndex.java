@@ -0,0 +1,157 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.metadata.EditionId;
+import pl.psnc.dlibra.metadata.PublicationId;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A size-bounded, in-memory index of the most recent edition of publications (RO versions), so that finding the
+ * edition of an RO does not need to list all editions of its publication.
+ * 
+ * Editions that are created must be recorded with {@link #add(PublicationId, EditionId)} and publications that are
+ * deleted must be invalidated. The entries expire after a while, which bounds the time for which an edition created
+ * by another instance can be missed.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class LatestEditionIndex {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(LatestEditionIndex.class);
+
+    /** Default maximum number of publications kept in the index. */
+    public static final long DEFAULT_MAX_PUBLICATIONS = 10000;
+
+    /** Default time after which an entry expires, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = 10 * 60 * 1000;
+
+    /** Publication id -> most recent edition id. */
+    private final StampedCache<Long, Long> editions;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxPublications
+     *            maximum number of publications kept in the index
+     * @param expiry
+     *            time after which an entry expires, in milliseconds
+     */
+    public LatestEditionIndex(long maxPublications, long expiry) {
+        Cache<Long, Long> cache = CacheBuilder.newBuilder().maximumSize(maxPublications)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).build();
+        editions = new StampedCache<Long, Long>(cache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public LatestEditionIndex() {
+        this(DEFAULT_MAX_PUBLICATIONS, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Return the most recent edition of a publication if it is indexed.
+     * 
+     * @param publicationId
+     *            publication id
+     * @return the edition id or null
+     */
+    public EditionId get(PublicationId publicationId) {
+        Long editionId = editions.get(publicationId.getId());
+        return editionId != null ? new EditionId(editionId) : null;
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(PublicationId, EditionId, long)} before starting to look for the most
+     * recent edition of a publication.
+     * 
+     * @param publicationId
+     *            publication id
+     * @return the current modification stamp of the publication
+     */
+    public long getStamp(PublicationId publicationId) {
+        return editions.getStamp(publicationId.getId());
+    }
+
+
+    /**
+     * Store the most recent edition of a publication, unless it has been modified since the stamp was taken.
+     * 
+     * @param publicationId
+     *            publication id
+     * @param editionId
+     *            edition id
+     * @param stamp
+     *            value of {@link #getStamp(PublicationId)} taken before the editions were listed
+     */
+    public void put(PublicationId publicationId, EditionId editionId, long stamp) {
+        if (!editions.put(publicationId.getId(), editionId.getId(), stamp)) {
+            LOG.debug(String.format("Publication %s was modified while being searched, not caching",
+                publicationId.getId()));
+        }
+    }
+
+
+    /**
+     * Record that an edition has been created, which makes it the most recent edition of its publication.
+     * 
+     * @param publicationId
+     *            publication id
+     * @param editionId
+     *            edition id
+     */
+    public void add(PublicationId publicationId, EditionId editionId) {
+        editions.update(publicationId.getId(), editionId.getId());
+    }
+
+
+    /**
+     * Remove a publication, i.e. when it is deleted.
+     * 
+     * @param publicationId
+     *            publication id
+     */
+    public void invalidate(PublicationId publicationId) {
+        editions.invalidate(publicationId.getId());
+    }
+
+
+    /**
+     * Remove all publications.
+     */
+    public void invalidateAll() {
+        editions.invalidateAll();
+    }
+
+
+    public long getHitCount() {
+        return editions.getHitCount();
+    }
+
+
+    public long getMissCount() {
+        return editions.getMissCount();
+    }
+
+
+    /**
+     * Return the number of publications currently indexed.
+     * 
+     * @return number of publications
+     */
+    public long size() {
+        return editions.size();
+    }
+
+}
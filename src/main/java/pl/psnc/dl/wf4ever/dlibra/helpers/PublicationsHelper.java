@@ -11,11 +11,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.transform.TransformerException;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
@@ -29,7 +30,6 @@ import pl.psnc.dlibra.metadata.DirectoryFilter;
 import pl.psnc.dlibra.metadata.DirectoryId;
 import pl.psnc.dlibra.metadata.DirectoryInfo;
 import pl.psnc.dlibra.metadata.DirectoryManager;
-import pl.psnc.dlibra.metadata.Edition;
 import pl.psnc.dlibra.metadata.EditionId;
 import pl.psnc.dlibra.metadata.ElementId;
 import pl.psnc.dlibra.metadata.ElementInfo;
@@ -67,6 +67,12 @@ public class PublicationsHelper {
 
     private final FileManager fileManager;
 
+    private final WorkspaceLookupCache workspaceCache;
+
+    private final ChildPublicationIndex childIndex;
+
+    private final LatestEditionIndex latestEditions;
+
 
     public PublicationsHelper(DLibraDataSource dLibraDataSource)
             throws RemoteException {
@@ -76,6 +82,9 @@ public class PublicationsHelper {
         directoryManager = dLibraDataSource.getMetadataServer().getDirectoryManager();
         userManager = dLibraDataSource.getUserManager();
         fileManager = dLibraDataSource.getMetadataServer().getFileManager();
+        workspaceCache = DLibraDataSource.getWorkspaceLookupCache();
+        childIndex = DLibraDataSource.getChildPublicationIndex();
+        latestEditions = DLibraDataSource.getLatestEditionIndex();
     }
 
 
@@ -121,7 +130,11 @@ public class PublicationsHelper {
         publication.setGroupStatus(Publication.PUB_GROUP_ROOT);
         publication.setName(groupPublicationName);
 
-        return publicationManager.createPublication(publication);
+        PublicationId publicationId = publicationManager.createPublication(publication);
+        if (parent != null) {
+            workspaceCache.addGroup(parent, groupPublicationName, publicationId);
+        }
+        return publicationId;
     }
 
 
@@ -139,7 +152,9 @@ public class PublicationsHelper {
 
         Publication publication = getNewPublication(publicationName, groupId, Publication.PUB_GROUP_MID);
         LOGGER.debug(String.format("%s\t\tcreate group publication prepared new publication", new DateTime().toString()));
-        return publicationManager.createPublication(publication);
+        PublicationId publicationId = publicationManager.createPublication(publication);
+        childIndex.add(groupId, publicationName, publicationId);
+        return publicationId;
     }
 
 
@@ -153,6 +168,8 @@ public class PublicationsHelper {
     public void deleteGroupPublication(PublicationId groupId)
             throws RemoteException, DLibraException {
         publicationManager.removePublication(groupId, true, "Group publication removed");
+        workspaceCache.invalidateGroup(groupId);
+        childIndex.remove(groupId);
     }
 
 
@@ -200,6 +217,7 @@ public class PublicationsHelper {
         Publication publication = getNewPublication(publicationName, groupId, Publication.PUB_GROUP_LEAF);
         LOGGER.debug(String.format("%s\t\tcreate publication prepared new publication", new DateTime().toString()));
         PublicationId publicationId = publicationManager.createPublication(publication);
+        childIndex.add(groupId, publicationName, publicationId);
         LOGGER.debug(String.format("Created publication %s with id %s", publication.getName(), publicationId));
         LOGGER.debug(String.format("%s\t\tcreate publication prepared as new", new DateTime().toString()));
 
@@ -212,19 +230,6 @@ public class PublicationsHelper {
     }
 
 
-    public void publishPublication(ResearchObject ro)
-            throws RemoteException, DLibraException {
-        LOGGER.debug(String.format("%s\t\tpublish start", new DateTime().toString()));
-
-        //FIXME this takes 4s
-        Edition edition = dLibra.getEditionHelper().getEdition(new EditionId(dLibra.getDlEditionId(ro)));
-        LOGGER.debug(String.format("%s\t\tgot last edition", new DateTime().toString()));
-        edition.setPublished(true);
-        publicationManager.setEditionData(edition);
-        LOGGER.debug(String.format("%s\t\tpublish end", new DateTime().toString()));
-    }
-
-
     private Publication getNewPublication(String publicationName, PublicationId groupId, byte groupStatus)
             throws RemoteException, DLibraException {
         Publication publication = new Publication(null, getWorkspaceDirectoryId());
@@ -238,6 +243,28 @@ public class PublicationsHelper {
     }
 
 
+    /**
+     * Uploads the main file of a new publication (RO version) and creates its first edition, already published and
+     * including the main file.
+     * 
+     * @param publicationName
+     *            edition name
+     * @param publicationId
+     *            publication id
+     * @param mainFileContent
+     *            main file content
+     * @param mainFilePath
+     *            main file path
+     * @param mainFileMimeType
+     *            main file MIME type
+     * @return the edition id
+     * @throws DLibraException
+     * @throws AccessDeniedException
+     * @throws IdNotFoundException
+     * @throws RemoteException
+     * @throws TransformerException
+     * @throws IOException
+     */
     public EditionId preparePublicationAsNew(String publicationName, PublicationId publicationId,
             InputStream mainFileContent, String mainFilePath, String mainFileMimeType)
             throws DLibraException, AccessDeniedException, IdNotFoundException, RemoteException, TransformerException,
@@ -248,7 +275,7 @@ public class PublicationsHelper {
         Version createdVersion = fileManager.createVersion(mainFile, 0, creationDate, "");
         OutputStream output = dLibra.getContentServer().getVersionOutputStream(createdVersion.getId());
         try {
-            IOUtils.copy(mainFileContent, output);
+            DLibraDataSource.getBufferPool().copy(mainFileContent, output, -1);
         } finally {
             mainFileContent.close();
             output.close();
@@ -256,10 +283,8 @@ public class PublicationsHelper {
 
         publicationManager.setMainFile(publicationId, createdVersion.getFileId());
 
-        EditionId editionId = dLibra.getEditionHelper().createEdition(publicationName, publicationId,
-            new VersionId[] {});
-        publicationManager.addEditionVersion(editionId, createdVersion.getId());
-        return editionId;
+        return dLibra.getEditionHelper().createEdition(publicationName, publicationId, true,
+            new VersionId[] { createdVersion.getId() });
     }
 
 
@@ -275,6 +300,8 @@ public class PublicationsHelper {
             throws DLibraException, IOException {
         PublicationId publicationId = new PublicationId(dLibra.getDlROVersionId(ro));
         publicationManager.removePublication(publicationId, true, "Research Object Version removed.");
+        childIndex.remove(publicationId);
+        latestEditions.invalidate(publicationId);
     }
 
 
@@ -288,17 +315,58 @@ public class PublicationsHelper {
     }
 
 
+    /**
+     * Finds a group publication in the workspace directory of the current user, or in the directory with all
+     * workspaces if the user has none. The publications found are cached in the {@link WorkspaceLookupCache}.
+     * 
+     * @param groupPublicationName
+     *            group publication name
+     * @return group publication id or null if not found
+     * @throws RemoteException
+     * @throws DLibraException
+     */
     PublicationId getGroupId(String groupPublicationName)
             throws RemoteException, DLibraException {
-        if (getWorkspaceDirectoryId() != null)
-            return getGroupId(groupPublicationName, getWorkspaceDirectoryId());
-        else
-            return getGroupId(groupPublicationName, dLibra.getWorkspacesContainerDirectoryId());
+        DirectoryId directoryId = getWorkspaceDirectoryId();
+        if (directoryId == null) {
+            directoryId = dLibra.getWorkspacesContainerDirectoryId();
+        }
+        PublicationId publicationId = workspaceCache.getGroup(directoryId, groupPublicationName);
+        if (publicationId != null) {
+            return publicationId;
+        }
+        long stamp = workspaceCache.getGroupStamp(directoryId, groupPublicationName);
+        int[] calls = { 0 };
+        publicationId = getGroupId(groupPublicationName, directoryId, calls);
+        if (publicationId != null) {
+            workspaceCache.putGroup(directoryId, groupPublicationName, publicationId, calls[0], stamp);
+        }
+        return publicationId;
     }
 
 
     PublicationId getGroupId(String groupPublicationName, DirectoryId directoryId)
             throws RemoteException, DLibraException {
+        return getGroupId(groupPublicationName, directoryId, new int[1]);
+    }
+
+
+    /**
+     * Walks a directory tree looking for a group publication.
+     * 
+     * @param groupPublicationName
+     *            group publication name
+     * @param directoryId
+     *            root of the directory tree
+     * @param calls
+     *            the first element is increased by the number of RMI calls made
+     * @return group publication id or null if not found
+     * @throws RemoteException
+     * @throws DLibraException
+     */
+    private PublicationId getGroupId(String groupPublicationName, DirectoryId directoryId, int[] calls)
+            throws RemoteException, DLibraException {
+        calls[0]++;
         Collection<Info> resultInfos = directoryManager.getObjects(
             new DirectoryFilter(null, directoryId).setGroupStatus(
                 (byte) (Publication.PUB_GROUP_ROOT | Publication.PUB_GROUP_MID)).setState(
@@ -309,7 +377,7 @@ public class PublicationsHelper {
                 return (PublicationId) info.getId();
             }
             if (info instanceof DirectoryInfo) {
-                PublicationId id = getGroupId(groupPublicationName, (DirectoryId) info.getId());
+                PublicationId id = getGroupId(groupPublicationName, (DirectoryId) info.getId(), calls);
                 if (id != null) {
                     return id;
                 }
@@ -319,24 +387,50 @@ public class PublicationsHelper {
     }
 
 
+    /**
+     * Finds a child publication of a group publication. All children of the group are listed once and indexed in the
+     * {@link ChildPublicationIndex}.
+     * 
+     * @param groupId
+     *            group publication id
+     * @param publicationName
+     *            child publication name
+     * @return child publication id or null if not found
+     * @throws RemoteException
+     * @throws DLibraException
+     */
     PublicationId getPublicationId(PublicationId groupId, String publicationName)
             throws RemoteException, DLibraException {
-        Collection<Info> resultInfos = publicationManager.getObjects(
-            new PublicationFilter(null, groupId).setGroupStatus(Publication.PUB_GROUP_ALL).setPublicationState(
-                (byte) (Publication.PUB_STATE_ALL - Publication.PUB_STATE_PERMANENT_DELETED)),
-            new OutputFilter(AbstractPublicationInfo.class)).getResultInfos();
-        for (Info info : resultInfos) {
-            if (info.getLabel().equals(publicationName)) {
-                return (PublicationId) info.getId();
+        Map<String, PublicationId> children = childIndex.get(groupId);
+        if (children == null) {
+            long stamp = childIndex.getStamp(groupId);
+            Collection<Info> resultInfos = publicationManager.getObjects(
+                new PublicationFilter(null, groupId).setGroupStatus(Publication.PUB_GROUP_ALL).setPublicationState(
+                    (byte) (Publication.PUB_STATE_ALL - Publication.PUB_STATE_PERMANENT_DELETED)),
+                new OutputFilter(AbstractPublicationInfo.class)).getResultInfos();
+            Map<String, PublicationId> listed = new HashMap<String, PublicationId>();
+            for (Info info : resultInfos) {
+                if (!listed.containsKey(info.getLabel())) {
+                    listed.put(info.getLabel(), (PublicationId) info.getId());
+                }
             }
+            children = childIndex.put(groupId, listed, stamp);
         }
-        return null;
+        return children.get(publicationName);
     }
 
 
     private DirectoryId getWorkspaceDirectoryId()
             throws RemoteException, DLibraException {
+        DirectoryId directoryId = workspaceCache.getHomeDirectory(dLibra.getUserLogin());
+        if (directoryId != null) {
+            return directoryId;
+        }
+        long stamp = workspaceCache.getHomeDirectoryStamp(dLibra.getUserLogin());
         User userData = userManager.getUserData(dLibra.getUserLogin());
+        if (userData.getHomedir() != null) {
+            workspaceCache.putHomeDirectory(dLibra.getUserLogin(), userData.getHomedir(), stamp);
+        }
         return userData.getHomedir();
     }
 
@@ -0,0 +1,185 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A size-bounded, in-memory cache of the dLibra ids of research objects, used to read files without a database
+ * transaction.
+ * 
+ * Only research objects with a known edition id are cached, so that reading their files never needs to resolve and
+ * persist an id. The cached ids are returned as detached {@link ResearchObject}s, which must not be modified. Research
+ * objects that are created or deleted must be invalidated. The entries expire after a while, which bounds the time
+ * for which ids changed by another instance can be used.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ResearchObjectIdCache {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ResearchObjectIdCache.class);
+
+    /** Default maximum number of ROs kept in the cache. */
+    public static final long DEFAULT_MAX_ROS = 10000;
+
+    /** Default time after which an entry expires, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = 10 * 60 * 1000;
+
+    /** RO URI -> ids. */
+    private final StampedCache<URI, Ids> ros;
+
+
+    /**
+     * The dLibra ids of one RO.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private static class Ids {
+
+        /** Workspace id. */
+        private final long workspaceId;
+
+        /** RO id. */
+        private final long roId;
+
+        /** RO version id. */
+        private final long roVersionId;
+
+        /** Edition id. */
+        private final long editionId;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param ro
+         *            research object
+         */
+        public Ids(ResearchObject ro) {
+            this.workspaceId = ro.getDlWorkspaceId();
+            this.roId = ro.getDlROId();
+            this.roVersionId = ro.getDlROVersionId();
+            this.editionId = ro.getDlEditionId();
+        }
+    }
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxROs
+     *            maximum number of ROs kept in the cache
+     * @param expiry
+     *            time after which an entry expires, in milliseconds
+     */
+    public ResearchObjectIdCache(long maxROs, long expiry) {
+        Cache<URI, Ids> cache = CacheBuilder.newBuilder().maximumSize(maxROs)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).build();
+        ros = new StampedCache<URI, Ids>(cache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public ResearchObjectIdCache() {
+        this(DEFAULT_MAX_ROS, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Return a detached research object with the cached ids.
+     * 
+     * @param uri
+     *            RO URI
+     * @return a new detached research object or null if the RO is not cached
+     */
+    public ResearchObject get(URI uri) {
+        Ids ids = ros.get(uri.normalize());
+        if (ids == null) {
+            return null;
+        }
+        return ResearchObject.createDetached(uri, ids.workspaceId, ids.roId, ids.roVersionId, ids.editionId);
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(ResearchObject, long)} before starting to load a research object.
+     * 
+     * @param uri
+     *            RO URI
+     * @return the current modification stamp of the research object
+     */
+    public long getStamp(URI uri) {
+        return ros.getStamp(uri.normalize());
+    }
+
+
+    /**
+     * Store the ids of a research object, if its edition id is known and it has not been invalidated since the stamp
+     * was taken.
+     * 
+     * @param ro
+     *            research object, loaded in a committed transaction
+     * @param stamp
+     *            value of {@link #getStamp(URI)} taken before the research object was loaded
+     */
+    public void put(ResearchObject ro, long stamp) {
+        if (ro.getDlEditionId() == 0) {
+            return;
+        }
+        Ids ids = new Ids(ro);
+        if (!ros.put(ro.getUri().normalize(), ids, stamp)) {
+            LOG.debug(String.format("Research object %s was modified while being loaded, not caching", ro.getUri()));
+        }
+    }
+
+
+    /**
+     * Remove a research object.
+     * 
+     * @param uri
+     *            RO URI
+     */
+    public void invalidate(URI uri) {
+        ros.invalidate(uri.normalize());
+    }
+
+
+    /**
+     * Remove all research objects.
+     */
+    public void invalidateAll() {
+        ros.invalidateAll();
+    }
+
+
+    public long getHitCount() {
+        return ros.getHitCount();
+    }
+
+
+    public long getMissCount() {
+        return ros.getMissCount();
+    }
+
+
+    /**
+     * Return the number of research objects currently cached.
+     * 
+     * @return number of research objects
+     */
+    public long size() {
+        return ros.size();
+    }
+
+}
@@ -0,0 +1,114 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import pl.psnc.dl.wf4ever.dl.ResourceMetadata;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A size-bounded, in-memory cache of file metadata, keyed by dLibra file version id.
+ * 
+ * File versions never change once written, because every update creates a new version, so the cached metadata never
+ * needs to be invalidated.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ResourceMetadataCache {
+
+    /** Default maximum number of versions kept in the cache. */
+    public static final long DEFAULT_MAX_VERSIONS = 100000;
+
+    /** Version id -> metadata. */
+    private final Cache<Long, ResourceMetadata> versions;
+
+    /** Number of lookups that found the version in the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups that did not find the version in the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxVersions
+     *            maximum number of versions kept in the cache
+     */
+    public ResourceMetadataCache(long maxVersions) {
+        versions = CacheBuilder.newBuilder().maximumSize(maxVersions).build();
+    }
+
+
+    /**
+     * Return the metadata of a version if it is cached.
+     * 
+     * @param versionId
+     *            dLibra file version id
+     * @return the metadata or null
+     */
+    public ResourceMetadata get(long versionId) {
+        ResourceMetadata metadata = versions.getIfPresent(versionId);
+        if (metadata != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return metadata;
+    }
+
+
+    /**
+     * Store the metadata of a version.
+     * 
+     * @param versionId
+     *            dLibra file version id
+     * @param metadata
+     *            the metadata
+     */
+    public void put(long versionId, ResourceMetadata metadata) {
+        versions.put(versionId, metadata);
+    }
+
+
+    /**
+     * Remove all versions.
+     */
+    public void invalidateAll() {
+        versions.invalidateAll();
+    }
+
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+
+    /**
+     * Return the ratio of lookups that found the version in the cache.
+     * 
+     * @return hit ratio, 1.0 if there were no lookups
+     */
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 1.0 : (double) hits.get() / total;
+    }
+
+
+    /**
+     * Return the number of versions currently cached.
+     * 
+     * @return number of versions
+     */
+    public long size() {
+        return versions.size();
+    }
+
+}
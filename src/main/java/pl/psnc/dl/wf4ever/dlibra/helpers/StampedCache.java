@@ -0,0 +1,217 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.cache.Cache;
+
+/**
+ * A cache of values loaded from dLibra or the database that discards values loaded concurrently with a modification
+ * of their key.
+ * 
+ * Before loading a value, take the stamp of its key with {@link #getStamp(Object)}, then store the value with
+ * {@link #put(Object, Object, long)}. Every modification must call {@link #invalidate(Object)} or
+ * {@link #touch(Object)} for the keys it changes, or {@link #touchAll()} if it can't tell which keys these are. The
+ * stamps are kept per stripe of keys, so a modification of one key discards only the values being loaded for keys of
+ * the same stripe.
+ * 
+ * @author piotrekhol
+ * 
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type
+ */
+public class StampedCache<K, V> {
+
+    /** Number of stamp stripes, a power of 2. */
+    private static final int STRIPES = 1024;
+
+    /** The values. */
+    private final Cache<K, V> cache;
+
+    /** Incremented on every modification of a key of the stripe. */
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+    /** Incremented on every modification of unknown keys. */
+    private final AtomicLong modifications = new AtomicLong();
+
+    /** Number of lookups that found the key. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups that did not find the key. */
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param cache
+     *            the cache that holds the values, with its own size limit and expiry
+     */
+    public StampedCache(Cache<K, V> cache) {
+        this.cache = cache;
+    }
+
+
+    /**
+     * Return a value, counting the lookup as a hit or miss.
+     * 
+     * @param key
+     *            the key
+     * @return the value or null
+     */
+    public V get(K key) {
+        V value = cache.getIfPresent(key);
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+
+    /**
+     * Return a value without counting the lookup.
+     * 
+     * @param key
+     *            the key
+     * @return the value or null
+     */
+    public V peek(K key) {
+        return cache.getIfPresent(key);
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #put(Object, Object, long)} before starting to load a value.
+     * 
+     * @param key
+     *            the key
+     * @return the current modification stamp of the key
+     */
+    public long getStamp(K key) {
+        // both counters only grow, so the sum changes whenever either does
+        return modifications.get() + stripes.get(stripe(key));
+    }
+
+
+    /**
+     * Store a loaded value, unless its key has been modified since the stamp was taken.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param stamp
+     *            value of {@link #getStamp(Object)} taken before the value was loaded
+     * @return true if the value has been stored
+     */
+    public boolean put(K key, V value, long stamp) {
+        if (getStamp(key) != stamp) {
+            return false;
+        }
+        cache.put(key, value);
+        // a modification between the check and the put does not see the value, so remove it here
+        if (getStamp(key) != stamp) {
+            cache.asMap().remove(key, value);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Store a value that results from a modification, i.e. a value that has just been created.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     */
+    public void update(K key, V value) {
+        touch(key);
+        cache.put(key, value);
+    }
+
+
+    /**
+     * Record that a key is being modified in place, so that the values being loaded for it are discarded.
+     * 
+     * @param key
+     *            the key
+     */
+    public void touch(K key) {
+        stripes.incrementAndGet(stripe(key));
+    }
+
+
+    /**
+     * Remove a key.
+     * 
+     * @param key
+     *            the key
+     */
+    public void invalidate(K key) {
+        touch(key);
+        cache.invalidate(key);
+    }
+
+
+    /**
+     * Record a modification of keys that are not known, so that all values being loaded are discarded.
+     */
+    public void touchAll() {
+        modifications.incrementAndGet();
+    }
+
+
+    /**
+     * Remove all keys.
+     */
+    public void invalidateAll() {
+        touchAll();
+        cache.invalidateAll();
+    }
+
+
+    /**
+     * Return a view of the cached values. Removing entries from it does not discard the values being loaded.
+     * 
+     * @return the cached values
+     */
+    public ConcurrentMap<K, V> asMap() {
+        return cache.asMap();
+    }
+
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+
+    /**
+     * Return the number of cached values.
+     * 
+     * @return number of values
+     */
+    public long size() {
+        return cache.size();
+    }
+
+
+    private int stripe(K key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & (STRIPES - 1);
+    }
+
+}
@@ -57,12 +57,15 @@ public class UnlockingInputStream extends InputStream {
     @Override
     public void close()
             throws IOException {
-        super.close();
-        if (contentServer != null && versionId != null) {
-            try {
-                contentServer.releaseElement(versionId);
-            } catch (DLibraException e) {
-                LOG.error("Could not release element " + versionId, e);
+        try {
+            inputStream.close();
+        } finally {
+            if (contentServer != null && versionId != null) {
+                try {
+                    contentServer.releaseElement(versionId);
+                } catch (DLibraException e) {
+                    LOG.error("Could not release element " + versionId, e);
+                }
             }
         }
     }
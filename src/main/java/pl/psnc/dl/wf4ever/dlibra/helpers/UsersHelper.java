@@ -95,6 +95,7 @@ public class UsersHelper {
             userManager.setUserData(user);
             userId = user.getId();
         }
+        DLibraDataSource.getWorkspaceLookupCache().invalidateUser(login);
 
         List<ActorId> usersWithRead = Arrays.asList(userId, getPublicUserId());
 
@@ -147,6 +148,7 @@ public class UsersHelper {
         directoryManager.removeDirectory(userData.getHomedir(), true, "Workspace removed from RO SRS");
 
         userManager.removeUser(userData.getId());
+        DLibraDataSource.getWorkspaceLookupCache().invalidateUser(login);
     }
 
 
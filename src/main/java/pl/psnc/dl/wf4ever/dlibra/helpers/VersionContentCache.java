@@ -0,0 +1,482 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * A local disk cache of file contents, keyed by dLibra file version id.
+ * 
+ * File versions never change once written, because every update creates a new version, so the cached contents never
+ * need to be invalidated. A version is stored when it is read from dLibra for the first time: the stream returned by
+ * {@link #fill(long, long, InputStream)} copies the data to a temporary file and stores it if it is read to the end
+ * and has the size recorded in dLibra, so that a truncated transfer is not cached. The MD5 of a stored version is
+ * compared with the digest reported by dLibra whenever the digest is read, see {@link #verify(long, byte[])}. The
+ * least recently used versions are deleted when their total size exceeds a limit.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class VersionContentCache {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(VersionContentCache.class);
+
+    /** Extension of cached files. */
+    private static final String FILE_SUFFIX = ".version";
+
+    /** Extension of files being filled. */
+    private static final String PART_SUFFIX = ".version.part";
+
+    /** Directory with the cached files. */
+    private final File directory;
+
+    /** Maximum size of a single cached file. */
+    private final long maxFileSize;
+
+    /** Version id -> cached file. */
+    private final Cache<Long, CachedVersion> versions;
+
+    /** Ids of versions being filled. */
+    private final ConcurrentMap<Long, Boolean> fills = new ConcurrentHashMap<Long, Boolean>();
+
+    /** Number of reads served from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of reads that did not find the version in the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of versions stored. */
+    private final AtomicLong stored = new AtomicLong();
+
+    /** Number of bytes served from the cache. */
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    /** Number of versions not stored because of a wrong size, or removed because of a wrong digest. */
+    private final AtomicLong corrupt = new AtomicLong();
+
+
+    /**
+     * A cached version.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private static class CachedVersion {
+
+        /** File with the contents. */
+        private final File file;
+
+        /** MD5 digest of the contents. */
+        private final byte[] digest;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param file
+         *            file with the contents
+         * @param digest
+         *            MD5 digest of the contents
+         */
+        public CachedVersion(File file, byte[] digest) {
+            this.file = file;
+            this.digest = digest;
+        }
+    }
+
+
+    /**
+     * Constructor. Files left in the directory by previous instances are deleted.
+     * 
+     * @param directory
+     *            directory used only by this cache, created if it doesn't exist
+     * @param maxBytes
+     *            maximum total size of the cached files
+     * @param maxFileSize
+     *            maximum size of a single cached file
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public VersionContentCache(File directory, long maxBytes, long maxFileSize)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the content cache directory " + directory);
+        }
+        File[] oldFiles = directory.listFiles();
+        if (oldFiles != null) {
+            for (File file : oldFiles) {
+                if (file.getName().endsWith(FILE_SUFFIX) || file.getName().endsWith(PART_SUFFIX)) {
+                    delete(file);
+                }
+            }
+        }
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.versions = CacheBuilder.newBuilder().maximumWeight(Math.max(1, maxBytes / 1024))
+                .weigher(new Weigher<Long, CachedVersion>() {
+
+                    @Override
+                    public int weigh(Long key, CachedVersion value) {
+                        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, value.file.length() / 1024));
+                    }
+                }).removalListener(new RemovalListener<Long, CachedVersion>() {
+
+                    @Override
+                    public void onRemoval(RemovalNotification<Long, CachedVersion> notification) {
+                        delete(notification.getValue().file);
+                    }
+                }).build();
+    }
+
+
+    /**
+     * Constructor of a cache that stores files up to a quarter of its size.
+     * 
+     * @param directory
+     *            directory used only by this cache, created if it doesn't exist
+     * @param maxBytes
+     *            maximum total size of the cached files
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public VersionContentCache(File directory, long maxBytes)
+            throws IOException {
+        this(directory, maxBytes, maxBytes / 4);
+    }
+
+
+    /**
+     * Return the cached contents of a version.
+     * 
+     * @param versionId
+     *            dLibra file version id
+     * @param offset
+     *            position of the first byte to return
+     * @return the contents starting at offset or null if the version is not cached
+     */
+    public InputStream get(long versionId, long offset) {
+        CachedVersion version = versions.getIfPresent(versionId);
+        if (version != null) {
+            try {
+                FileChannel channel = FileChannel.open(version.file.toPath(), StandardOpenOption.READ);
+                try {
+                    channel.position(offset);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                hits.incrementAndGet();
+                bytesServed.addAndGet(Math.max(0, version.file.length() - offset));
+                return Channels.newInputStream(channel);
+            } catch (IOException e) {
+                // evicted in the meantime
+                LOG.debug("Could not open cached version " + version.file, e);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+
+    /**
+     * Compare a cached version with the MD5 digest reported by dLibra and remove it if they differ.
+     * 
+     * @param versionId
+     *            dLibra file version id
+     * @param digest
+     *            MD5 digest of the version in dLibra
+     * @return false if the cached version was corrupt and has been removed, true otherwise
+     */
+    public boolean verify(long versionId, byte[] digest) {
+        CachedVersion version = versions.getIfPresent(versionId);
+        if (version == null || Arrays.equals(version.digest, digest)) {
+            return true;
+        }
+        LOG.warn("Cached version " + versionId + " does not match the dLibra digest, removing");
+        versions.asMap().remove(versionId, version);
+        corrupt.incrementAndGet();
+        return false;
+    }
+
+
+    /**
+     * Wrap the stream of a version read from dLibra so that the version is stored when the stream is read to the end
+     * and exactly the expected number of bytes has been read. If the size is not known or too large, the version is
+     * already being stored by another stream, or the cache file cannot be created, the stream is returned unchanged.
+     * 
+     * @param versionId
+     *            dLibra file version id
+     * @param size
+     *            size of the version recorded in dLibra, or -1 if it is not known
+     * @param in
+     *            the whole contents of the version
+     * @return a stream with the same contents
+     */
+    public InputStream fill(long versionId, long size, InputStream in) {
+        if (size < 0 || size > maxFileSize || fills.putIfAbsent(versionId, Boolean.TRUE) != null) {
+            return in;
+        }
+        try {
+            return new FillingInputStream(in, versionId, size, File.createTempFile("version-" + versionId + "-",
+                PART_SUFFIX, directory));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LOG.warn("Could not start caching version " + versionId, e);
+            fills.remove(versionId);
+            return in;
+        }
+    }
+
+
+    /**
+     * Remove all versions.
+     */
+    public void invalidateAll() {
+        versions.invalidateAll();
+    }
+
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+
+    /**
+     * Return the ratio of reads served from the cache.
+     * 
+     * @return hit ratio, 1.0 if there were no reads
+     */
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 1.0 : (double) hits.get() / total;
+    }
+
+
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+
+    public long getCorruptCount() {
+        return corrupt.get();
+    }
+
+
+    /**
+     * Return the number of versions currently cached.
+     * 
+     * @return number of versions
+     */
+    public long size() {
+        return versions.size();
+    }
+
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Could not delete " + file);
+        }
+    }
+
+
+    /**
+     * Copies the data read to a temporary file and stores it in the cache at the end of the stream.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private class FillingInputStream extends FilterInputStream {
+
+        /** Version id. */
+        private final long versionId;
+
+        /** Size of the version recorded in dLibra. */
+        private final long size;
+
+        /** Temporary file. */
+        private final File file;
+
+        /** Stream writing the temporary file, null when filling has finished. */
+        private OutputStream out;
+
+        /** MD5 of the data read. */
+        private final MessageDigest digest;
+
+        /** Number of bytes read. */
+        private long count = 0;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param in
+         *            version contents
+         * @param versionId
+         *            version id
+         * @param size
+         *            size of the version recorded in dLibra
+         * @param file
+         *            temporary file
+         * @throws IOException
+         *             if the file cannot be opened
+         * @throws NoSuchAlgorithmException
+         *             if MD5 is not supported
+         */
+        public FillingInputStream(InputStream in, long versionId, long size, File file)
+                throws IOException, NoSuchAlgorithmException {
+            super(in);
+            this.versionId = versionId;
+            this.size = size;
+            this.file = file;
+            this.digest = MessageDigest.getInstance("MD5");
+            this.out = new FileOutputStream(file);
+        }
+
+
+        @Override
+        public int read()
+                throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                store();
+            } else {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                store();
+            } else {
+                write(b, off, n);
+            }
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n)
+                throws IOException {
+            abort();
+            return super.skip(n);
+        }
+
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+
+        @Override
+        public void close()
+                throws IOException {
+            try {
+                super.close();
+            } finally {
+                abort();
+            }
+        }
+
+
+        private void write(byte[] b, int off, int len) {
+            if (out == null) {
+                return;
+            }
+            count += len;
+            if (count > size) {
+                LOG.warn(String.format("Version %d is longer than its size %d, not caching", versionId, size));
+                corrupt.incrementAndGet();
+                abort();
+                return;
+            }
+            try {
+                out.write(b, off, len);
+                digest.update(b, off, len);
+            } catch (IOException e) {
+                LOG.warn("Could not cache version " + versionId, e);
+                abort();
+            }
+        }
+
+
+        private void store() {
+            if (out == null) {
+                return;
+            }
+            if (count != size) {
+                LOG.warn(String.format("Read %d bytes of version %d of size %d, not caching", count, versionId, size));
+                corrupt.incrementAndGet();
+                abort();
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+                String name = file.getName();
+                File cached = new File(directory, name.substring(0, name.length() - PART_SUFFIX.length())
+                        + FILE_SUFFIX);
+                if (file.renameTo(cached)) {
+                    versions.put(versionId, new CachedVersion(cached, digest.digest()));
+                    stored.incrementAndGet();
+                } else {
+                    LOG.warn("Could not rename " + file + " to " + cached);
+                    delete(file);
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not cache version " + versionId, e);
+                delete(file);
+            } finally {
+                fills.remove(versionId);
+            }
+        }
+
+
+        private void abort() {
+            if (out == null) {
+                return;
+            }
+            IOUtils.closeQuietly(out);
+            out = null;
+            delete(file);
+            fills.remove(versionId);
+        }
+    }
+
+}
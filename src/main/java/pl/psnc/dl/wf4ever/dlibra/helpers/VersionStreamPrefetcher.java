@@ -0,0 +1,251 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.content.ContentServer;
+import pl.psnc.dlibra.metadata.VersionId;
+import pl.psnc.dlibra.metadata.VersionInfo;
+import pl.psnc.dlibra.service.DLibraException;
+
+/**
+ * Returns the contents of a list of file versions in order, reading ahead up to a given number of the following
+ * versions in background threads.
+ * 
+ * Versions that are read ahead are loaded into memory, and the total size of the versions read ahead and not yet
+ * returned is limited. Versions larger than the limit, and versions that could not be scheduled in time, are opened
+ * when they are needed and streamed directly from dLibra. Background reads always close their
+ * {@link UnlockingInputStream}, so the version locks are released even if the prefetcher is closed before the data is
+ * used.
+ * 
+ * A prefetcher must be used by one thread only.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class VersionStreamPrefetcher implements Closeable {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(VersionStreamPrefetcher.class);
+
+    /** dLibra content server. */
+    private final ContentServer contentServer;
+
+    /** Versions to return, in order. */
+    private final List<EditionFilesIndex.Entry> entries;
+
+    /** Threads reading ahead. */
+    private final ExecutorService executor;
+
+    /** Maximum number of versions being read ahead. */
+    private final int depth;
+
+    /** Maximum number of bytes read ahead and not yet returned. */
+    private final long maxBytes;
+
+    /** Entry index -> pending read. */
+    private final Map<Integer, Future<byte[]>> pending = new HashMap<Integer, Future<byte[]>>();
+
+    /** Index of the next entry to return. */
+    private int nextIndex = 0;
+
+    /** Index of the next entry to consider for reading ahead. */
+    private int scheduledIndex = 0;
+
+    /** Number of bytes reserved by pending reads and the entry returned last. */
+    private long reservedBytes = 0;
+
+    /** Number of bytes reserved by the entry returned last. */
+    private long lastReservedBytes = 0;
+
+
+    /**
+     * Constructor.
+     * 
+     * @param contentServer
+     *            dLibra content server
+     * @param entries
+     *            versions to return, with version infos set
+     * @param executor
+     *            threads reading ahead
+     * @param depth
+     *            maximum number of versions being read ahead
+     * @param maxBytes
+     *            maximum number of bytes read ahead and not yet returned
+     */
+    public VersionStreamPrefetcher(ContentServer contentServer, List<EditionFilesIndex.Entry> entries,
+            ExecutorService executor, int depth, long maxBytes) {
+        this.contentServer = contentServer;
+        this.entries = entries;
+        this.executor = executor;
+        this.depth = depth;
+        this.maxBytes = maxBytes;
+        schedule();
+    }
+
+
+    /**
+     * Are there any more versions to return.
+     * 
+     * @return true if {@link #next()} will return a stream
+     */
+    public boolean hasNext() {
+        return nextIndex < entries.size();
+    }
+
+
+    /**
+     * Return the contents of the next version. The stream must be closed by the caller.
+     * 
+     * @return version contents
+     * @throws IOException
+     *             when reading ahead failed or the thread was interrupted
+     * @throws DLibraException
+     *             when opening the version failed
+     */
+    public InputStream next()
+            throws IOException, DLibraException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        reservedBytes -= lastReservedBytes;
+        lastReservedBytes = 0;
+        int index = nextIndex++;
+        scheduledIndex = Math.max(scheduledIndex, nextIndex);
+        Future<byte[]> future = pending.remove(index);
+        if (future != null) {
+            lastReservedBytes = getSize(entries.get(index));
+        }
+        schedule();
+
+        VersionId versionId = entries.get(index).getVersionId();
+        if (future == null) {
+            LOG.debug("Opening a version input stream for " + versionId);
+            return new UnlockingInputStream(contentServer.getVersionInputStream(versionId), contentServer, versionId);
+        }
+        try {
+            return new ByteArrayInputStream(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + versionId);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof DLibraException) {
+                throw (DLibraException) e.getCause();
+            }
+            throw new IOException("Reading ahead " + versionId + " failed", e.getCause());
+        }
+    }
+
+
+    /**
+     * Start reading ahead the following versions, as long as the limits allow.
+     */
+    private void schedule() {
+        while (scheduledIndex < entries.size() && pending.size() < depth) {
+            EditionFilesIndex.Entry entry = entries.get(scheduledIndex);
+            long size = getSize(entry);
+            if (size > maxBytes) {
+                // too large, it will be streamed
+                scheduledIndex++;
+                continue;
+            }
+            if (reservedBytes + size > maxBytes) {
+                break;
+            }
+            try {
+                pending.put(scheduledIndex, executor.submit(new VersionRead(entry.getVersionId(), size)));
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Could not read ahead " + entry.getVersionId() + ", it will be streamed");
+                break;
+            }
+            reservedBytes += size;
+            scheduledIndex++;
+        }
+    }
+
+
+    private static long getSize(EditionFilesIndex.Entry entry) {
+        VersionInfo versionInfo = entry.getVersionInfo();
+        return versionInfo != null ? versionInfo.getSize() : Long.MAX_VALUE;
+    }
+
+
+    /**
+     * Cancel reads that have not started yet and discard the data read ahead. Reads in progress close their streams
+     * when they finish.
+     */
+    @Override
+    public void close() {
+        for (Future<byte[]> future : pending.values()) {
+            future.cancel(false);
+        }
+        pending.clear();
+        reservedBytes = 0;
+        lastReservedBytes = 0;
+        nextIndex = entries.size();
+    }
+
+
+    /**
+     * Reads a whole version into memory.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private class VersionRead implements Callable<byte[]> {
+
+        /** File version id. */
+        private final VersionId versionId;
+
+        /** Expected size. */
+        private final long size;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param versionId
+         *            file version id
+         * @param size
+         *            expected size in bytes
+         */
+        public VersionRead(VersionId versionId, long size) {
+            this.versionId = versionId;
+            this.size = size;
+        }
+
+
+        @Override
+        public byte[] call()
+                throws IOException, DLibraException {
+            InputStream in = new UnlockingInputStream(contentServer.getVersionInputStream(versionId), contentServer,
+                    versionId);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) size);
+                DLibraDataSource.getBufferPool().copy(in, out, size);
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import pl.psnc.dlibra.metadata.DirectoryId;
+import pl.psnc.dlibra.metadata.PublicationId;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A cache of the home directories of users and of the group publications (workspaces) found in them, so that resolving
+ * the workspace of a user does not need to load the user data and walk the directory tree over RMI every time.
+ * 
+ * The entries expire after a while, which bounds the time for which changes made by another instance can be missed.
+ * Group publications that are created or deleted, and users that are modified or deleted, must be recorded or
+ * invalidated.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class WorkspaceLookupCache {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(WorkspaceLookupCache.class);
+
+    /** Default maximum number of users or group publications kept in the cache. */
+    public static final long DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Default time after which an entry expires, in milliseconds. */
+    public static final long DEFAULT_EXPIRY = 10 * 60 * 1000;
+
+    /** User login -> home directory. */
+    private final StampedCache<String, DirectoryId> homeDirectories;
+
+    /** Directory id and group publication name -> group publication. */
+    private final StampedCache<String, Group> groups;
+
+    /** Number of RMI calls that the lookups found in the cache would have made. */
+    private final AtomicLong avoidedCalls = new AtomicLong();
+
+
+    /**
+     * A group publication found by walking a directory tree.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private static class Group {
+
+        /** Group publication id. */
+        private final PublicationId publicationId;
+
+        /** Number of RMI calls made to find it. */
+        private final int calls;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param publicationId
+         *            group publication id
+         * @param calls
+         *            number of RMI calls made to find it
+         */
+        public Group(PublicationId publicationId, int calls) {
+            this.publicationId = publicationId;
+            this.calls = calls;
+        }
+    }
+
+
+    /**
+     * Constructor.
+     * 
+     * @param maxEntries
+     *            maximum number of users, and separately of group publications, kept in the cache
+     * @param expiry
+     *            time after which an entry expires, in milliseconds
+     */
+    public WorkspaceLookupCache(long maxEntries, long expiry) {
+        Cache<String, DirectoryId> homeDirectoryCache = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).build();
+        homeDirectories = new StampedCache<String, DirectoryId>(homeDirectoryCache);
+        Cache<String, Group> groupCache = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(expiry, TimeUnit.MILLISECONDS).build();
+        groups = new StampedCache<String, Group>(groupCache);
+    }
+
+
+    /**
+     * Constructor with the default settings.
+     */
+    public WorkspaceLookupCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_EXPIRY);
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #putHomeDirectory(String, DirectoryId, long)} before starting to load the
+     * user data.
+     * 
+     * @param login
+     *            user login
+     * @return the current modification stamp of the user
+     */
+    public long getHomeDirectoryStamp(String login) {
+        return homeDirectories.getStamp(login);
+    }
+
+
+    /**
+     * Return a stamp to be passed to {@link #putGroup(DirectoryId, String, PublicationId, int, long)} before starting
+     * to search for a group publication.
+     * 
+     * @param directoryId
+     *            root of the directory tree
+     * @param name
+     *            group publication name
+     * @return the current modification stamp of the group publication
+     */
+    public long getGroupStamp(DirectoryId directoryId, String name) {
+        return groups.getStamp(createKey(directoryId, name));
+    }
+
+
+    /**
+     * Return the home directory of a user if it is cached.
+     * 
+     * @param login
+     *            user login
+     * @return the home directory or null
+     */
+    public DirectoryId getHomeDirectory(String login) {
+        DirectoryId directoryId = homeDirectories.get(login);
+        if (directoryId != null) {
+            avoidedCalls.incrementAndGet();
+        }
+        return directoryId;
+    }
+
+
+    /**
+     * Store the home directory of a user, unless the cache has been modified since the stamp was taken.
+     * 
+     * @param login
+     *            user login
+     * @param directoryId
+     *            home directory
+     * @param stamp
+     *            value of {@link #getHomeDirectoryStamp(String)} taken before the user data was loaded
+     */
+    public void putHomeDirectory(String login, DirectoryId directoryId, long stamp) {
+        if (!homeDirectories.put(login, directoryId, stamp)) {
+            LOG.debug(String.format("User %s was modified while being loaded, not caching", login));
+        }
+    }
+
+
+    /**
+     * Remove a user and the group publications found in their home directory, i.e. when the user is modified or
+     * deleted.
+     * 
+     * @param login
+     *            user login
+     */
+    public void invalidateUser(String login) {
+        DirectoryId directoryId = homeDirectories.peek(login);
+        homeDirectories.invalidate(login);
+        if (directoryId != null) {
+            String prefix = directoryId.getId() + "/";
+            for (String key : groups.asMap().keySet()) {
+                if (key.startsWith(prefix)) {
+                    groups.invalidate(key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Return a group publication found in a directory tree if it is cached.
+     * 
+     * @param directoryId
+     *            root of the directory tree
+     * @param name
+     *            group publication name
+     * @return the group publication id or null
+     */
+    public PublicationId getGroup(DirectoryId directoryId, String name) {
+        Group group = groups.get(createKey(directoryId, name));
+        if (group == null) {
+            return null;
+        }
+        avoidedCalls.addAndGet(group.calls);
+        return group.publicationId;
+    }
+
+
+    /**
+     * Store a group publication found in a directory tree, unless it has been modified since the stamp was taken.
+     * 
+     * @param directoryId
+     *            root of the directory tree
+     * @param name
+     *            group publication name
+     * @param publicationId
+     *            group publication id
+     * @param calls
+     *            number of RMI calls made to find it
+     * @param stamp
+     *            value of {@link #getGroupStamp(DirectoryId, String)} taken before the directory tree was searched
+     */
+    public void putGroup(DirectoryId directoryId, String name, PublicationId publicationId, int calls, long stamp) {
+        if (!groups.put(createKey(directoryId, name), new Group(publicationId, calls), stamp)) {
+            LOG.debug(String.format("Group publication %s was modified while being searched for, not caching", name));
+        }
+    }
+
+
+    /**
+     * Record that a group publication has been created in a directory.
+     * 
+     * @param directoryId
+     *            the directory
+     * @param name
+     *            group publication name
+     * @param publicationId
+     *            group publication id
+     */
+    public void addGroup(DirectoryId directoryId, String name, PublicationId publicationId) {
+        // finding it would take at least one listing of the directory
+        groups.update(createKey(directoryId, name), new Group(publicationId, 1));
+    }
+
+
+    /**
+     * Remove a group publication, i.e. when it is deleted.
+     * 
+     * @param publicationId
+     *            group publication id
+     */
+    public void invalidateGroup(PublicationId publicationId) {
+        // the directory of the group publication is not known, so all searches are discarded
+        groups.touchAll();
+        for (Map.Entry<String, Group> entry : groups.asMap().entrySet()) {
+            if (entry.getValue().publicationId.getId().equals(publicationId.getId())) {
+                groups.invalidate(entry.getKey());
+            }
+        }
+    }
+
+
+    /**
+     * Remove all entries.
+     */
+    public void invalidateAll() {
+        homeDirectories.invalidateAll();
+        groups.invalidateAll();
+    }
+
+
+    public long getHomeDirectoryHitCount() {
+        return homeDirectories.getHitCount();
+    }
+
+
+    public long getGroupHitCount() {
+        return groups.getHitCount();
+    }
+
+
+    public long getAvoidedCallCount() {
+        return avoidedCalls.get();
+    }
+
+
+    private static String createKey(DirectoryId directoryId, String name) {
+        return directoryId.getId() + "/" + name;
+    }
+
+}
@@ -0,0 +1,593 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * A local disk cache of finished zip archives of research objects.
+ * 
+ * An archive is identified by the edition id, the folder and a fingerprint of the file versions it contains, see
+ * {@link #createKey(long, String, List)}. The least recently used archives are deleted when their total size exceeds
+ * a limit. When many clients request the same archive at the same time, only one of them builds it and the others
+ * wait for the build to finish and read the cached file. The client that builds the archive reads it while it is
+ * written, see {@link Build#follow()}, so the build does not run at the speed of that client. Any operation that
+ * modifies an edition must call {@link #invalidate(long)}.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ZipArchiveCache {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ZipArchiveCache.class);
+
+    /** Extension of finished archives. */
+    private static final String ARCHIVE_SUFFIX = ".zip";
+
+    /** Extension of archives being built. */
+    private static final String PART_SUFFIX = ".zip.part";
+
+    /** Default time to wait for an archive built by another client, in milliseconds. */
+    public static final long DEFAULT_BUILD_TIMEOUT = 5 * 60 * 1000;
+
+    /** Directory with the archives. */
+    private final File directory;
+
+    /** Time to wait for an archive built by another client, in milliseconds. */
+    private final long buildTimeout;
+
+    /** Key -> finished archive. */
+    private final Cache<String, File> archives;
+
+    /** Key -> archive being built. */
+    private final ConcurrentMap<String, Build> builds = new ConcurrentHashMap<String, Build>();
+
+    /** Number of requests served from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of requests that did not find the archive in the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of requests that waited for an archive built by another client. */
+    private final AtomicLong waits = new AtomicLong();
+
+    /** Number of archives built and stored. */
+    private final AtomicLong stored = new AtomicLong();
+
+
+    /**
+     * Constructor. Archives left in the directory by previous instances are deleted.
+     * 
+     * @param directory
+     *            directory used only by this cache, created if it doesn't exist
+     * @param maxBytes
+     *            maximum total size of the archives
+     * @param buildTimeout
+     *            time to wait for an archive built by another client, in milliseconds
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public ZipArchiveCache(File directory, long maxBytes, long buildTimeout)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the zip cache directory " + directory);
+        }
+        File[] oldFiles = directory.listFiles();
+        if (oldFiles != null) {
+            for (File file : oldFiles) {
+                if (file.getName().endsWith(ARCHIVE_SUFFIX) || file.getName().endsWith(PART_SUFFIX)) {
+                    delete(file);
+                }
+            }
+        }
+        this.directory = directory;
+        this.buildTimeout = buildTimeout;
+        this.archives = CacheBuilder.newBuilder().maximumWeight(Math.max(1, maxBytes / 1024))
+                .weigher(new Weigher<String, File>() {
+
+                    @Override
+                    public int weigh(String key, File value) {
+                        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, value.length() / 1024));
+                    }
+                }).removalListener(new RemovalListener<String, File>() {
+
+                    @Override
+                    public void onRemoval(RemovalNotification<String, File> notification) {
+                        delete(notification.getValue());
+                    }
+                }).build();
+    }
+
+
+    /**
+     * Constructor with the default build timeout.
+     * 
+     * @param directory
+     *            directory used only by this cache, created if it doesn't exist
+     * @param maxBytes
+     *            maximum total size of the archives
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public ZipArchiveCache(File directory, long maxBytes)
+            throws IOException {
+        this(directory, maxBytes, DEFAULT_BUILD_TIMEOUT);
+    }
+
+
+    /**
+     * Create the key of an archive.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     * @param folder
+     *            folder or null for the whole research object
+     * @param entries
+     *            files in the archive
+     * @return the archive key, starting with the edition id
+     */
+    public static String createKey(long editionId, String folder, List<EditionFilesIndex.Entry> entries) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        digest.update(String.valueOf(folder).getBytes(utf8));
+        for (EditionFilesIndex.Entry entry : entries) {
+            digest.update((byte) 0);
+            digest.update(entry.getFileInfo().getFullPath().getBytes(utf8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(entry.getVersionId().getId()).getBytes(utf8));
+        }
+        StringBuilder key = new StringBuilder().append(editionId).append('-');
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * Return the cached archive. If another client is building it, wait for it to finish up to the build timeout.
+     * 
+     * @param key
+     *            archive key
+     * @return the archive contents or null if it is not cached
+     * @throws IOException
+     *             if the thread is interrupted or the archive cannot be opened
+     */
+    public InputStream get(String key)
+            throws IOException {
+        return get(key, buildTimeout);
+    }
+
+
+    /**
+     * Return the cached archive. If another client is building it, wait for it to finish up to the given time.
+     * 
+     * @param key
+     *            archive key
+     * @param timeout
+     *            maximum time to wait, in milliseconds, 0 not to wait
+     * @return the archive contents or null if it is not cached
+     * @throws IOException
+     *             if the thread is interrupted or the archive cannot be opened
+     */
+    public InputStream get(String key, long timeout)
+            throws IOException {
+        Build build = builds.get(key);
+        if (build != null) {
+            waits.incrementAndGet();
+            try {
+                if (!build.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Timed out waiting for zip archive " + key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for zip archive " + key);
+            }
+        }
+        File file = archives.getIfPresent(key);
+        if (file != null) {
+            try {
+                InputStream in = Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+                hits.incrementAndGet();
+                return in;
+            } catch (IOException e) {
+                // evicted in the meantime
+                LOG.debug("Could not open cached zip archive " + file, e);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+
+    /**
+     * Start building an archive, unless another client is already building it.
+     * 
+     * @param key
+     *            archive key
+     * @return the build, which must be committed or aborted, or null if another client is building the archive
+     * @throws IOException
+     *             if the archive file cannot be created
+     */
+    public Build startBuild(String key)
+            throws IOException {
+        File file = File.createTempFile(key + "-", PART_SUFFIX, directory);
+        Build build = new Build(key, file);
+        if (builds.putIfAbsent(key, build) != null) {
+            build.abort();
+            return null;
+        }
+        return build;
+    }
+
+
+    /**
+     * Remove all archives of an edition and make the archives being built for it not to be cached.
+     * 
+     * @param editionId
+     *            dLibra edition id
+     */
+    public void invalidate(long editionId) {
+        String prefix = editionId + "-";
+        for (Build build : builds.values()) {
+            if (build.key.startsWith(prefix)) {
+                build.stale = true;
+            }
+        }
+        for (String key : archives.asMap().keySet()) {
+            if (key.startsWith(prefix)) {
+                archives.invalidate(key);
+            }
+        }
+    }
+
+
+    /**
+     * Remove all archives.
+     */
+    public void invalidateAll() {
+        for (Build build : builds.values()) {
+            build.stale = true;
+        }
+        archives.invalidateAll();
+    }
+
+
+    public long getBuildTimeout() {
+        return buildTimeout;
+    }
+
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+
+    /**
+     * Return the number of archives currently cached.
+     * 
+     * @return number of archives
+     */
+    public long size() {
+        return archives.size();
+    }
+
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Could not delete " + file);
+        }
+    }
+
+
+    /**
+     * An archive being built. The archive is written to a temporary file in the cache directory.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    public class Build {
+
+        /** Archive key. */
+        private final String key;
+
+        /** Temporary file. */
+        private final File file;
+
+        /** Stream writing the temporary file. */
+        private final OutputStream out;
+
+        /** Counted down when the build is committed or aborted. */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** Set when the edition has been modified during the build. */
+        private volatile boolean stale = false;
+
+        /** Number of bytes written to the file, guarded by the build. */
+        private long written = 0;
+
+        /** Set when the whole archive has been written, guarded by the build. */
+        private boolean complete = false;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param key
+         *            archive key
+         * @param file
+         *            temporary file
+         * @throws IOException
+         *             if the file cannot be opened
+         */
+        Build(String key, File file)
+                throws IOException {
+            this.key = key;
+            this.file = file;
+            this.out = new ProgressOutputStream(new FileOutputStream(file));
+        }
+
+
+        /**
+         * Return the stream to which the archive should be written. The stream is closed by {@link #commit()} or
+         * {@link #abort()}.
+         * 
+         * @return output stream
+         */
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+
+        /**
+         * Return a stream that reads the archive while it is being written. The stream blocks when it reaches the end
+         * of the data written so far, ends when the build is committed and fails if it is aborted. Must be called
+         * before the build is committed or aborted.
+         * 
+         * @return the archive contents
+         * @throws IOException
+         *             if the file cannot be opened
+         */
+        public InputStream follow()
+                throws IOException {
+            return new FollowingInputStream(this, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        }
+
+
+        /**
+         * Wait until there are bytes to read after a position, or the build has finished.
+         * 
+         * @param position
+         *            position in the file
+         * @return number of bytes that can be read, or -1 if the archive is complete and there are no more bytes
+         * @throws IOException
+         *             if the build has been aborted or the thread is interrupted
+         */
+        private synchronized long awaitBytes(long position)
+                throws IOException {
+            while (written <= position && done.getCount() > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading zip archive " + key);
+                }
+            }
+            if (written > position) {
+                return written - position;
+            }
+            if (!complete) {
+                throw new IOException("Building zip archive " + key + " failed");
+            }
+            return -1;
+        }
+
+
+        private synchronized void progress(long bytes) {
+            written += bytes;
+            notifyAll();
+        }
+
+
+        /**
+         * Store the complete archive in the cache.
+         */
+        public void commit() {
+            try {
+                out.close();
+                synchronized (this) {
+                    complete = true;
+                }
+                String name = file.getName();
+                File archive = new File(directory, name.substring(0, name.length() - PART_SUFFIX.length())
+                        + ARCHIVE_SUFFIX);
+                if (stale) {
+                    LOG.debug("Edition was modified while building zip archive " + key + ", not caching");
+                    delete(file);
+                } else if (!file.renameTo(archive)) {
+                    LOG.warn("Could not rename " + file + " to " + archive);
+                    delete(file);
+                } else {
+                    archives.put(key, archive);
+                    stored.incrementAndGet();
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not store zip archive " + key, e);
+                delete(file);
+            } finally {
+                finish();
+            }
+        }
+
+
+        /**
+         * Discard the archive.
+         */
+        public void abort() {
+            IOUtils.closeQuietly(out);
+            delete(file);
+            finish();
+        }
+
+
+        private void finish() {
+            builds.remove(key, this);
+            synchronized (this) {
+                done.countDown();
+                notifyAll();
+            }
+        }
+
+
+        /**
+         * Records the bytes written to the file, so that the following streams can read them.
+         * 
+         * @author piotrekhol
+         * 
+         */
+        private class ProgressOutputStream extends FilterOutputStream {
+
+            /**
+             * Constructor.
+             * 
+             * @param out
+             *            stream writing the file
+             */
+            public ProgressOutputStream(OutputStream out) {
+                super(out);
+            }
+
+
+            @Override
+            public void write(int b)
+                    throws IOException {
+                out.write(b);
+                progress(1);
+            }
+
+
+            @Override
+            public void write(byte[] b, int off, int len)
+                    throws IOException {
+                out.write(b, off, len);
+                progress(len);
+            }
+        }
+    }
+
+
+    /**
+     * Reads an archive while it is being built. The file is read through its own channel, which stays valid when the
+     * file is renamed or deleted.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private static class FollowingInputStream extends InputStream {
+
+        /** The build. */
+        private final Build build;
+
+        /** Channel reading the file. */
+        private final FileChannel channel;
+
+        /** Position of the next byte to read. */
+        private long position = 0;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param build
+         *            the build
+         * @param channel
+         *            channel reading the file
+         */
+        public FollowingInputStream(Build build, FileChannel channel) {
+            this.build = build;
+            this.channel = channel;
+        }
+
+
+        @Override
+        public int read()
+                throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = build.awaitBytes(position);
+            if (available < 0) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), position);
+            if (n < 0) {
+                throw new IOException("Zip archive " + build.key + " is shorter than written");
+            }
+            position += n;
+            return n;
+        }
+
+
+        @Override
+        public void close()
+                throws IOException {
+            channel.close();
+        }
+    }
+
+}
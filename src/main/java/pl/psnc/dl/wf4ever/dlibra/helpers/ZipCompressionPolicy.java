@@ -0,0 +1,25 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+/**
+ * Decides how each file is compressed when a research object is exported as a zip archive.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public interface ZipCompressionPolicy {
+
+    /**
+     * Return the compression level of a zip entry.
+     * 
+     * @param path
+     *            file path in the archive
+     * @param mimeType
+     *            file MIME type, may be null
+     * @param size
+     *            file size in bytes or -1 if not known
+     * @return a {@link java.util.zip.Deflater} compression level, {@link java.util.zip.Deflater#NO_COMPRESSION} if
+     *         the file should be stored without compression
+     */
+    int getCompressionLevel(String path, String mimeType, long size);
+
+}
@@ -0,0 +1,425 @@
+package pl.psnc.dl.wf4ever.dlibra.helpers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A bounded worker pool that produces zip archives of research objects.
+ * 
+ * There is a fixed number of workers and a bounded queue of waiting exports. When the queue is full, a new export
+ * waits up to a configured time for a free slot and is then rejected with a {@link RejectedExecutionException}. To
+ * keep one user from taking all workers, each user may have only a limited number of exports running or waiting.
+ * 
+ * Each worker can read ahead the next files of its archive using a separate pool of prefetching threads, see
+ * {@link VersionStreamPrefetcher}.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ZipExportExecutor {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ZipExportExecutor.class);
+
+    /** Default number of workers. */
+    public static final int DEFAULT_THREADS = 8;
+
+    /** Default maximum number of exports waiting for a worker. */
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    /** Default maximum number of exports running or waiting per user. */
+    public static final int DEFAULT_MAX_TASKS_PER_USER = 4;
+
+    /** Default time to wait for a free queue slot, in milliseconds. */
+    public static final long DEFAULT_QUEUE_TIMEOUT = 1000;
+
+    /** Default number of files read ahead by each export. */
+    public static final int DEFAULT_PREFETCH_DEPTH = 4;
+
+    /** Default maximum number of bytes read ahead by each export. */
+    public static final long DEFAULT_PREFETCH_BYTES = 8 * 1024 * 1024;
+
+    /** Workers. */
+    private final ThreadPoolExecutor executor;
+
+    /** Threads reading files ahead for the workers. */
+    private final ThreadPoolExecutor prefetchExecutor;
+
+    /** Number of files read ahead by each export, 0 to read the files sequentially. */
+    private volatile int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+    /** Maximum number of bytes read ahead by each export. */
+    private volatile long prefetchBytes = DEFAULT_PREFETCH_BYTES;
+
+    /** Decides how the files are compressed. */
+    private volatile ZipCompressionPolicy compressionPolicy = new DefaultZipCompressionPolicy();
+
+    /** Capacity of the pipe between a worker and the client, in bytes. */
+    private volatile int pipeCapacity = BytePipe.DEFAULT_CAPACITY;
+
+    /** Maximum number of exports running or waiting per user. */
+    private final int maxTasksPerUser;
+
+    /** User login -> number of exports running or waiting. */
+    private final ConcurrentMap<String, AtomicInteger> userTasks = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /** Number of exports finished successfully. */
+    private final AtomicLong completed = new AtomicLong();
+
+    /** Number of exports that threw an exception. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Number of exports rejected. */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Number of bytes of zip archives produced. */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** Total time that workers spent producing archives, in nanoseconds. */
+    private final AtomicLong busyNanos = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * 
+     * @param threads
+     *            number of workers
+     * @param queueSize
+     *            maximum number of exports waiting for a worker
+     * @param maxTasksPerUser
+     *            maximum number of exports running or waiting per user
+     * @param queueTimeout
+     *            time to wait for a free queue slot before rejecting an export, in milliseconds
+     */
+    public ZipExportExecutor(int threads, int queueSize, int maxTasksPerUser, long queueTimeout) {
+        this.maxTasksPerUser = maxTasksPerUser;
+        this.prefetchExecutor = new ThreadPoolExecutor(threads * 2, threads * 2, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                        .setNameFormat("edition zip prefetcher %d").setDaemon(true).build());
+        this.prefetchExecutor.allowCoreThreadTimeOut(true);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactoryBuilder()
+                        .setNameFormat("edition zip downloader %d").setDaemon(true).build(), new WaitingRejectionHandler(
+                        queueTimeout)) {
+
+            @Override
+            protected void terminated() {
+                // the exports that used the prefetching threads have all finished
+                prefetchExecutor.shutdown();
+            }
+        };
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Constructor with default settings.
+     */
+    public ZipExportExecutor() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_TASKS_PER_USER, DEFAULT_QUEUE_TIMEOUT);
+    }
+
+
+    /**
+     * Schedule an export.
+     * 
+     * @param login
+     *            login of the user requesting the export
+     * @param task
+     *            the export, which should report the archive size with {@link #recordBytes(long)}
+     * @throws RejectedExecutionException
+     *             if the user has too many exports or there is no free slot in the queue
+     */
+    public void submit(final String login, final Runnable task) {
+        final AtomicInteger tasks = acquireUserTask(login);
+        if (tasks == null) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(String.format("User %s has %d zip exports in progress", login,
+                maxTasksPerUser));
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                        completed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        LOG.error("Zip export failed", e);
+                    } finally {
+                        busyNanos.addAndGet(System.nanoTime() - start);
+                        releaseUserTask(login, tasks);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseUserTask(login, tasks);
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Count a new export of a user, unless the user has too many exports running or waiting.
+     * 
+     * @param login
+     *            user login
+     * @return the counter of the user's exports, or null if the user has too many
+     */
+    private AtomicInteger acquireUserTask(String login) {
+        while (true) {
+            AtomicInteger tasks = getUserTasks(login);
+            int count = tasks.get();
+            if (count < 0) {
+                // the counter is being removed, a new one will be created
+                userTasks.remove(login, tasks);
+            } else if (count >= maxTasksPerUser) {
+                return null;
+            } else if (tasks.compareAndSet(count, count + 1)) {
+                return tasks;
+            }
+        }
+    }
+
+
+    /**
+     * Count a finished or rejected export of a user. The counter of a user with no exports is removed and marked with
+     * -1, so that it is not used again.
+     * 
+     * @param login
+     *            user login
+     * @param tasks
+     *            the counter returned by {@link #acquireUserTask(String)}
+     */
+    private void releaseUserTask(String login, AtomicInteger tasks) {
+        if (tasks.decrementAndGet() == 0 && tasks.compareAndSet(0, -1)) {
+            userTasks.remove(login, tasks);
+        }
+    }
+
+
+    private AtomicInteger getUserTasks(String login) {
+        AtomicInteger tasks = userTasks.get(login);
+        if (tasks == null) {
+            AtomicInteger newTasks = new AtomicInteger();
+            tasks = userTasks.putIfAbsent(login, newTasks);
+            if (tasks == null) {
+                tasks = newTasks;
+            }
+        }
+        return tasks;
+    }
+
+
+    /**
+     * Add to the number of bytes of zip archives produced.
+     * 
+     * @param count
+     *            number of bytes
+     */
+    public void recordBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+
+    public int getPipeCapacity() {
+        return pipeCapacity;
+    }
+
+
+    /**
+     * Set the capacity of the pipes created for new exports.
+     * 
+     * @param pipeCapacity
+     *            capacity in bytes
+     */
+    public void setPipeCapacity(int pipeCapacity) {
+        this.pipeCapacity = pipeCapacity;
+    }
+
+
+    public ExecutorService getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+
+    /**
+     * Set the number of files read ahead by new exports.
+     * 
+     * @param prefetchDepth
+     *            number of files, 0 to read the files sequentially
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+
+    public long getPrefetchBytes() {
+        return prefetchBytes;
+    }
+
+
+    /**
+     * Set the maximum number of bytes read ahead by each new export. Files larger than that are not read ahead.
+     * 
+     * @param prefetchBytes
+     *            number of bytes
+     */
+    public void setPrefetchBytes(long prefetchBytes) {
+        this.prefetchBytes = prefetchBytes;
+    }
+
+
+    public ZipCompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+
+    /**
+     * Set the policy used by new exports to decide how each file is compressed.
+     * 
+     * @param compressionPolicy
+     *            compression policy
+     */
+    public void setCompressionPolicy(ZipCompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+
+    /**
+     * Stop accepting new exports. Exports already accepted are finished, then the prefetching threads are shut down.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    /**
+     * Wait for the exports to finish after {@link #shutdown()}.
+     * 
+     * @param timeout
+     *            maximum time to wait, in milliseconds
+     * @return true if all exports have finished, false if the timeout elapsed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout)
+            throws InterruptedException {
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Return the number of users with exports running or waiting.
+     * 
+     * @return number of users
+     */
+    public int getUserCount() {
+        return userTasks.size();
+    }
+
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+
+    public long getBytesWritten() {
+        return bytes.get();
+    }
+
+
+    /**
+     * Return the average speed of a single export, i.e. the number of bytes produced divided by the time workers
+     * spent on exports.
+     * 
+     * @return bytes per second, or 0 if no export has finished
+     */
+    public double getBytesPerSecond() {
+        long nanos = busyNanos.get();
+        return nanos == 0 ? 0 : bytes.get() * 1e9 / nanos;
+    }
+
+
+    /**
+     * Waits for a free slot in the queue and rejects the export if there is none.
+     * 
+     * @author piotrekhol
+     * 
+     */
+    private static class WaitingRejectionHandler implements RejectedExecutionHandler {
+
+        /** Time to wait in milliseconds. */
+        private final long timeout;
+
+
+        /**
+         * Constructor.
+         * 
+         * @param timeout
+         *            time to wait in milliseconds
+         */
+        public WaitingRejectionHandler(long timeout) {
+            this.timeout = timeout;
+        }
+
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Zip exports are shut down");
+            }
+            try {
+                if (timeout > 0 && executor.getQueue().offer(r, timeout, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RejectedExecutionException("Too many zip exports in progress");
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.List;
 
 import org.hibernate.Criteria;
+import org.hibernate.LockOptions;
 import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 
@@ -87,6 +88,36 @@ public abstract class ActiveRecord implements Serializable {
     }
 
 
+    /**
+     * Record that the object has been modified. An object that is not in the current session yet is attached to it,
+     * and an object already in the session is left to the dirty check at flush, so all modifications made in a
+     * transaction are written once, when it is committed.
+     */
+    protected void markDirty() {
+        Session session = HibernateUtil.getSessionFactory().getCurrentSession();
+        if (!session.contains(this)) {
+            session.saveOrUpdate(this);
+        }
+    }
+
+
+    /**
+     * Lock the row of the object until the end of the transaction, so that transactions that lock the same object run
+     * one after another. The changes of the session are flushed first, so that a new object has a row.
+     * 
+     * @return true if the row has been locked, false if the object is not in the current session
+     */
+    public boolean lock() {
+        Session session = HibernateUtil.getSessionFactory().getCurrentSession();
+        if (!session.contains(this)) {
+            return false;
+        }
+        session.flush();
+        session.buildLockRequest(LockOptions.UPGRADE).lock(this);
+        return true;
+    }
+
+
     /**
      * Delete the object from the database.
      */
@@ -1,20 +1,45 @@
 package pl.psnc.dl.wf4ever.dlibra.hibernate;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
 
 /**
  * Copied from http://docs.jboss.org/hibernate/orm/3.3/reference/en/html/tutorial.html.
  * 
+ * The session factory is built on first use, or in the background after {@link #initializeInBackground()}.
+ * 
  * @author piotrek
  * 
  */
 public final class HibernateUtil {
 
-    /** singleton. */
-    private static final SessionFactory SESSION_FACTORY = buildSessionFactory();
+    /** logger. */
+    private static final Logger LOGGER = Logger.getLogger(HibernateUtil.class);
+
+    /** Time it took to build the session factory in milliseconds, -1 until it is built. */
+    private static volatile long buildTime = -1;
+
+    /** Background initialization, null if not started. */
+    private static FutureTask<SessionFactory> initialization;
+
+
+    /**
+     * Holds the session factory, so that it is built when first used and not when this class is loaded.
+     */
+    private static final class SessionFactoryHolder {
+
+        /** singleton. */
+        private static final SessionFactory SESSION_FACTORY = buildSessionFactory();
+    }
 
 
     /**
@@ -31,6 +56,7 @@ public final class HibernateUtil {
      * @return session factory
      */
     private static SessionFactory buildSessionFactory() {
+        long start = System.nanoTime();
         try {
             // Create the SessionFactory from hibernate.cfg.xml
             Configuration configuration = new Configuration();
@@ -38,6 +64,8 @@ public final class HibernateUtil {
             ServiceRegistry serviceRegistry = new ServiceRegistryBuilder().applySettings(configuration.getProperties())
                     .buildServiceRegistry();
             SessionFactory sessionFactory2 = configuration.buildSessionFactory(serviceRegistry);
+            buildTime = (System.nanoTime() - start) / 1000000;
+            LOGGER.debug(String.format("Built the session factory in %d ms", buildTime));
             return sessionFactory2;
         } catch (Throwable ex) {
             // Make sure you log the exception, as it might be swallowed
@@ -48,7 +76,78 @@ public final class HibernateUtil {
 
 
     public static SessionFactory getSessionFactory() {
-        return SESSION_FACTORY;
+        return SessionFactoryHolder.SESSION_FACTORY;
+    }
+
+
+    /**
+     * Start building the session factory in a background thread, unless it has already been started.
+     * 
+     * @return the initialization, done when the session factory is ready
+     */
+    public static synchronized Future<SessionFactory> initializeInBackground() {
+        if (initialization == null) {
+            initialization = new FutureTask<SessionFactory>(new Callable<SessionFactory>() {
+
+                @Override
+                public SessionFactory call() {
+                    return getSessionFactory();
+                }
+            });
+            Thread thread = new Thread(initialization, "session factory initializer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return initialization;
+    }
+
+
+    /**
+     * Check if the session factory has been built.
+     * 
+     * @return true if the session factory is ready
+     */
+    public static boolean isInitialized() {
+        return buildTime >= 0;
+    }
+
+
+    /**
+     * Check if an entity class is mapped in the Hibernate configuration.
+     * 
+     * @param entityClass
+     *            entity class
+     * @return true if the class is mapped
+     */
+    public static boolean isMapped(Class<?> entityClass) {
+        return getSessionFactory().getClassMetadata(entityClass) != null;
+    }
+
+
+    /**
+     * Get the time it took to build the session factory.
+     * 
+     * @return time in milliseconds or -1 if the session factory has not been built yet
+     */
+    public static long getBuildTime() {
+        return buildTime;
+    }
+
+
+    /**
+     * Get the statistics of a second-level cache region, i.e. {@link ResearchObject#CACHE_REGION}.
+     * 
+     * @param region
+     *            cache region name
+     * @return the region statistics or null if statistics are disabled (see hibernate.generate_statistics) or the
+     *         region does not exist
+     */
+    public static SecondLevelCacheStatistics getCacheStatistics(String region) {
+        Statistics statistics = getSessionFactory().getStatistics();
+        if (!statistics.isStatisticsEnabled()) {
+            return null;
+        }
+        return statistics.getSecondLevelCacheStatistics(region);
     }
 
 }
@@ -6,6 +6,7 @@ package pl.psnc.dl.wf4ever.dlibra.hibernate;
 import java.net.URI;
 
 import javax.persistence.Basic;
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
@@ -13,15 +14,22 @@ import javax.persistence.Table;
 import javax.persistence.Transient;
 
 import org.apache.log4j.Logger;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 /**
  * A DAO for a research object.
  * 
+ * Research objects are kept in the second-level cache region {@link #CACHE_REGION}, so that loading one by URI does
+ * not require a database query. The cache is updated when the changed ids are committed.
+ * 
  * @author piotrekhol
  * 
  */
 @Entity
 @Table(name = "research_objects")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = ResearchObject.CACHE_REGION)
 public class ResearchObject extends ActiveRecord {
 
     /** id. */
@@ -31,6 +39,9 @@ public class ResearchObject extends ActiveRecord {
     @SuppressWarnings("unused")
     private static final Logger LOGGER = Logger.getLogger(ResearchObject.class);
 
+    /** Second-level cache region. */
+    public static final String CACHE_REGION = "pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObject";
+
     /** Manifest path. */
     public static final String MANIFEST_PATH = ".ro/manifest.rdf";
 
@@ -49,6 +60,9 @@ public class ResearchObject extends ActiveRecord {
     /** RO edition id in dLibra, default is 0. */
     private long dlEditionId = 0;
 
+    /** Are the RO files mirrored in {@link ResearchObjectFile}s, null until checked in the current session. */
+    private Boolean filesMirrored;
+
     /** Fixed roevo annotation file path. */
     private String roevoPath = ".ro/evo_info.ttl";
 
@@ -89,6 +103,32 @@ public class ResearchObject extends ActiveRecord {
     }
 
 
+    /**
+     * Create an instance with known ids that is not attached to any session. It must not be modified or saved.
+     * 
+     * @param uri
+     *            RO URI
+     * @param dlWorkspaceId
+     *            workspace id in dLibra
+     * @param dlROId
+     *            RO id in dLibra
+     * @param dlROVersionId
+     *            RO version id in dLibra
+     * @param dlEditionId
+     *            RO edition id in dLibra
+     * @return an instance
+     */
+    public static ResearchObject createDetached(URI uri, long dlWorkspaceId, long dlROId, long dlROVersionId,
+            long dlEditionId) {
+        ResearchObject result = new ResearchObject(uri);
+        result.dlWorkspaceId = dlWorkspaceId;
+        result.dlROId = dlROId;
+        result.dlROVersionId = dlROVersionId;
+        result.dlEditionId = dlEditionId;
+        return result;
+    }
+
+
     @Basic
     public long getDlWorkspaceId() {
         return dlWorkspaceId;
@@ -96,8 +136,10 @@ public class ResearchObject extends ActiveRecord {
 
 
     public void setDlWorkspaceId(long dlWorkspaceId) {
-        this.dlWorkspaceId = dlWorkspaceId;
-        save();
+        if (this.dlWorkspaceId != dlWorkspaceId) {
+            this.dlWorkspaceId = dlWorkspaceId;
+            markDirty();
+        }
     }
 
 
@@ -108,8 +150,10 @@ public class ResearchObject extends ActiveRecord {
 
 
     public void setDlROId(long dlROId) {
-        this.dlROId = dlROId;
-        save();
+        if (this.dlROId != dlROId) {
+            this.dlROId = dlROId;
+            markDirty();
+        }
     }
 
 
@@ -120,8 +164,10 @@ public class ResearchObject extends ActiveRecord {
 
 
     public void setDlROVersionId(long dlROVersionId) {
-        this.dlROVersionId = dlROVersionId;
-        save();
+        if (this.dlROVersionId != dlROVersionId) {
+            this.dlROVersionId = dlROVersionId;
+            markDirty();
+        }
     }
 
 
@@ -132,8 +178,40 @@ public class ResearchObject extends ActiveRecord {
 
 
     public void setDlEditionId(long dlEditionId) {
-        this.dlEditionId = dlEditionId;
-        save();
+        if (this.dlEditionId != dlEditionId) {
+            this.dlEditionId = dlEditionId;
+            markDirty();
+        }
+    }
+
+
+    /**
+     * Check if the RO files are mirrored in {@link ResearchObjectFile}s, i.e. if the RO has any file rows. The result
+     * is kept until the end of the session. Outside of a transaction, the files are not considered mirrored.
+     * 
+     * @return true if the RO files are mirrored
+     */
+    @Transient
+    public boolean isFilesMirrored() {
+        if (filesMirrored == null) {
+            if (!ResearchObjectFile.isMapped()
+                    || !HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().isActive()) {
+                return false;
+            }
+            filesMirrored = ResearchObjectFile.exists(uri, false);
+        }
+        return filesMirrored;
+    }
+
+
+    /**
+     * Record that the RO files have been mirrored or their rows deleted in the current session.
+     * 
+     * @param filesMirrored
+     *            are the RO files mirrored
+     */
+    public void setFilesMirrored(boolean filesMirrored) {
+        this.filesMirrored = filesMirrored;
     }
 
 
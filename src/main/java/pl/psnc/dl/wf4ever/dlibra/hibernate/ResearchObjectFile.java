@@ -0,0 +1,346 @@
+package pl.psnc.dl.wf4ever.dlibra.hibernate;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Transient;
+import javax.persistence.UniqueConstraint;
+
+import org.apache.log4j.Logger;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ * A DAO for a file of a research object, mirroring the file metadata stored in dLibra.
+ * 
+ * The unique index on (RO URI, path) serves both the lookups of single files and the listings of folders, which are
+ * path prefix queries.
+ * 
+ * The entity is optional. To mirror the files, it must be mapped in hibernate.cfg.xml with
+ * 
+ * <pre>
+ * &lt;mapping class="pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObjectFile" /&gt;
+ * </pre>
+ * 
+ * and existing databases that do not create the schema with hbm2ddl.auto need the table, for MySQL:
+ * 
+ * <pre>
+ * CREATE TABLE research_object_files (
+ *     id BIGINT NOT NULL AUTO_INCREMENT,
+ *     ro_uri VARCHAR(255) NOT NULL,
+ *     path VARCHAR(255) NOT NULL,
+ *     dlVersionId BIGINT NOT NULL,
+ *     dlFileId BIGINT NOT NULL,
+ *     size BIGINT NOT NULL,
+ *     checksum VARCHAR(255),
+ *     mimeType VARCHAR(255),
+ *     lastModified DATETIME,
+ *     PRIMARY KEY (id),
+ *     UNIQUE KEY research_object_files_ro_path (ro_uri, path)
+ * );
+ * </pre>
+ * 
+ * If it is not mapped, the files are always read from dLibra. The files of a research object are considered mirrored
+ * if it has any rows, so the table is the only schema change.
+ * 
+ * @author piotrekhol
+ * 
+ */
+@Entity
+@Table(name = "research_object_files", uniqueConstraints = @UniqueConstraint(name = "research_object_files_ro_path", columnNames = {
+        "ro_uri", "path" }))
+public class ResearchObjectFile extends ActiveRecord {
+
+    /** id. */
+    private static final long serialVersionUID = -2906128796416441306L;
+
+    /** logger. */
+    private static final Logger LOGGER = Logger.getLogger(ResearchObjectFile.class);
+
+    /** Is the entity mapped in the Hibernate configuration, null until checked. */
+    private static volatile Boolean mapped;
+
+    /** Primary key. */
+    private long id;
+
+    /** RO URI. */
+    private String roUri;
+
+    /** File path, without the leading "/", empty folders in the dLibra form. */
+    private String path;
+
+    /** File version id in dLibra. */
+    private long dlVersionId;
+
+    /** File id in dLibra. */
+    private long dlFileId;
+
+    /** Size in bytes. */
+    private long size;
+
+    /** MD5 digest in hex, null if not known yet. */
+    private String checksum;
+
+    /** MIME type. */
+    private String mimeType;
+
+    /** Last modification date. */
+    private Date lastModified;
+
+
+    /**
+     * Constructor.
+     */
+    protected ResearchObjectFile() {
+
+    }
+
+
+    /**
+     * Constructor.
+     * 
+     * @param ro
+     *            RO URI
+     * @param path
+     *            file path, without the leading "/"
+     */
+    public ResearchObjectFile(URI ro, String path) {
+        this();
+        this.roUri = ro.toString();
+        this.path = path;
+    }
+
+
+    @Id
+    @GeneratedValue
+    public long getId() {
+        return id;
+    }
+
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+
+    @Column(name = "ro_uri", nullable = false)
+    public String getRoUri() {
+        return roUri;
+    }
+
+
+    public void setRoUri(String roUri) {
+        this.roUri = roUri;
+    }
+
+
+    @Column(name = "path", nullable = false)
+    public String getPath() {
+        return path;
+    }
+
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+
+    @Basic
+    public long getDlVersionId() {
+        return dlVersionId;
+    }
+
+
+    public void setDlVersionId(long dlVersionId) {
+        this.dlVersionId = dlVersionId;
+    }
+
+
+    @Basic
+    public long getDlFileId() {
+        return dlFileId;
+    }
+
+
+    public void setDlFileId(long dlFileId) {
+        this.dlFileId = dlFileId;
+    }
+
+
+    @Basic
+    public long getSize() {
+        return size;
+    }
+
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+
+    @Basic
+    public String getChecksum() {
+        return checksum;
+    }
+
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+
+    @Basic
+    public String getMimeType() {
+        return mimeType;
+    }
+
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+
+    @Temporal(TemporalType.TIMESTAMP)
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+
+    public void setLastModified(Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+
+    /**
+     * Get the file name, i.e. the last segment of the path.
+     * 
+     * @return file name
+     */
+    @Transient
+    public String getName() {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+
+    /**
+     * Check if the entity is mapped in the Hibernate configuration, so that the files can be mirrored.
+     * 
+     * @return true if the entity is mapped
+     */
+    public static boolean isMapped() {
+        if (mapped == null) {
+            mapped = HibernateUtil.isMapped(ResearchObjectFile.class);
+            if (!mapped) {
+                LOGGER.info("Research object files are not mapped, the files will be read from dLibra");
+            }
+        }
+        return mapped;
+    }
+
+
+    /**
+     * Find a file of a research object.
+     * 
+     * @param ro
+     *            RO URI
+     * @param path
+     *            file path, without the leading "/"
+     * @return the file or null
+     */
+    public static ResearchObjectFile find(URI ro, String path) {
+        List<ResearchObjectFile> files = findByCriteria(ResearchObjectFile.class,
+            Restrictions.eq("roUri", ro.toString()), Restrictions.eq("path", path));
+        return files.isEmpty() ? null : files.get(0);
+    }
+
+
+    /**
+     * Check if a research object has any files in the database.
+     * 
+     * @param ro
+     *            RO URI
+     * @param locking
+     *            read the files with a shared lock, which also sees the rows committed by other transactions after
+     *            this one started
+     * @return true if there is at least one file
+     */
+    public static boolean exists(URI ro, boolean locking) {
+        Query query = HibernateUtil.getSessionFactory().getCurrentSession()
+                .createQuery("from ResearchObjectFile f where f.roUri = :ro").setParameter("ro", ro.toString())
+                .setMaxResults(1);
+        if (locking) {
+            query.setLockMode("f", LockMode.PESSIMISTIC_READ);
+        }
+        return !query.list().isEmpty();
+    }
+
+
+    /**
+     * Find the URIs of all research objects that have files in the database.
+     * 
+     * @return list of RO URIs
+     */
+    @SuppressWarnings("unchecked")
+    public static List<URI> findResearchObjectUris() {
+        List<URI> result = new ArrayList<URI>();
+        for (String uri : (List<String>) HibernateUtil.getSessionFactory().getCurrentSession()
+                .createQuery("select distinct f.roUri from ResearchObjectFile f").list()) {
+            result.add(URI.create(uri));
+        }
+        return result;
+    }
+
+
+    /**
+     * Find all files of a research object.
+     * 
+     * @param ro
+     *            RO URI
+     * @return list of files
+     */
+    public static List<ResearchObjectFile> findByResearchObject(URI ro) {
+        return findByCriteria(ResearchObjectFile.class, Restrictions.eq("roUri", ro.toString()));
+    }
+
+
+    /**
+     * Find the files of a research object with paths starting with a prefix.
+     * 
+     * @param ro
+     *            RO URI
+     * @param prefix
+     *            path prefix, without the leading "/"
+     * @return list of files
+     */
+    public static List<ResearchObjectFile> findByPathPrefix(URI ro, String prefix) {
+        String escaped = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return findByCriteria(ResearchObjectFile.class, Restrictions.eq("roUri", ro.toString()),
+            Restrictions.like("path", escaped, MatchMode.START));
+    }
+
+
+    /**
+     * Delete all files of a research object.
+     * 
+     * @param ro
+     *            RO URI
+     */
+    public static void deleteByResearchObject(URI ro) {
+        for (ResearchObjectFile file : findByResearchObject(ro)) {
+            file.delete();
+        }
+    }
+
+}
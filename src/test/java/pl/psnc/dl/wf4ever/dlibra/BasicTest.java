@@ -13,6 +13,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import junit.framework.Assert;
@@ -27,8 +31,10 @@ import pl.psnc.dl.wf4ever.dl.ConflictException;
 import pl.psnc.dl.wf4ever.dl.DigitalLibrary;
 import pl.psnc.dl.wf4ever.dl.DigitalLibraryException;
 import pl.psnc.dl.wf4ever.dl.NotFoundException;
+import pl.psnc.dl.wf4ever.dl.ResourceMetadata;
 import pl.psnc.dl.wf4ever.dl.UserMetadata;
 import pl.psnc.dl.wf4ever.dlibra.helpers.DLibraDataSource;
+import pl.psnc.dl.wf4ever.dlibra.helpers.LatencyRecorder;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
@@ -101,6 +107,40 @@ public class BasicTest {
     }
 
 
+    /**
+     * Create the test user.
+     * 
+     * @return a data source of the test user
+     * @throws DigitalLibraryException
+     * @throws IOException
+     */
+    private DLibraDataSource createUserDataSource()
+            throws DigitalLibraryException, IOException {
+        DigitalLibrary dlA = new DLibraDataSource(host, port, workspacesDirectory, collectionId, ADMIN_ID,
+                ADMIN_PASSWORD);
+        dlA.createOrUpdateUser(USER_ID, USER_PASSWORD, USERNAME);
+        return new DLibraDataSource(host, port, workspacesDirectory, collectionId, USER_ID, USER_PASSWORD);
+    }
+
+
+    /**
+     * Create the test user and the test RO.
+     * 
+     * @return a data source of the test user
+     * @throws DigitalLibraryException
+     * @throws IOException
+     * @throws ConflictException
+     * @throws AccessDeniedException
+     */
+    private DLibraDataSource createResearchObject()
+            throws DigitalLibraryException, IOException, ConflictException, AccessDeniedException {
+        DLibraDataSource dl = createUserDataSource();
+        dl.createResearchObject(RO_URI, new ByteArrayInputStream(MAIN_FILE_CONTENT.getBytes()), MAIN_FILE_PATH,
+            MAIN_FILE_MIME_TYPE);
+        return dl;
+    }
+
+
     /**
      * Test method for
      * {@link pl.psnc.dl.wf4ever.dlibra.helpers.DLibraDataSource#createVersion(java.lang.String, java.lang.String, java.lang.String, java.net.URI)}
@@ -131,6 +171,144 @@ public class BasicTest {
     }
 
 
+    @Test
+    public final void testGetFileContentsRange()
+            throws DigitalLibraryException, NotFoundException, ConflictException, IOException, AccessDeniedException {
+        DLibraDataSource dl = createResearchObject();
+        InputStream in = dl.getFileContents(RO_URI, MAIN_FILE_PATH, 1, 2);
+        try {
+            assertEquals("Range is returned", MAIN_FILE_CONTENT.substring(1, 3), IOUtils.toString(in));
+        } finally {
+            in.close();
+        }
+        in = dl.getFileContents(RO_URI, MAIN_FILE_PATH, 2, -1);
+        try {
+            assertEquals("Suffix is returned", MAIN_FILE_CONTENT.substring(2), IOUtils.toString(in));
+        } finally {
+            in.close();
+        }
+        in = dl.getFileContents(RO_URI, MAIN_FILE_PATH, 100, 10);
+        try {
+            assertEquals("Nothing is returned beyond the end", "", IOUtils.toString(in));
+        } finally {
+            in.close();
+        }
+    }
+
+
+    @Test
+    public final void testCreateOrUpdateFileMetadata()
+            throws DigitalLibraryException, NotFoundException, ConflictException, IOException, AccessDeniedException {
+        DLibraDataSource dl = createResearchObject();
+        ResourceMetadata created = dl.createOrUpdateFile(RO_URI, "dir/file.txt",
+            new ByteArrayInputStream("lorem ipsum".getBytes()), MAIN_FILE_MIME_TYPE);
+        assertTrue("Metadata of the new version is cached", created == dl.getFileInfo(RO_URI, "dir/file.txt"));
+        DLibraDataSource.getResourceMetadataCache().invalidateAll();
+        ResourceMetadata stored = dl.getFileInfo(RO_URI, "dir/file.txt");
+        assertEquals("Checksum computed locally is the same as in dLibra", stored.getChecksum(), created.getChecksum());
+        assertEquals("Size is the same as in dLibra", stored.getSize(), created.getSize());
+        assertEquals("Size is correct", "lorem ipsum".length(), created.getSize());
+    }
+
+
+    @Test
+    public final void testCreateOrUpdateFiles()
+            throws DigitalLibraryException, NotFoundException, ConflictException, IOException, AccessDeniedException {
+        DLibraDataSource dl = createResearchObject();
+        dl.createOrUpdateFile(RO_URI, "dir/", new ByteArrayInputStream(new byte[] {}), MAIN_FILE_MIME_TYPE);
+
+        Map<String, InputStream> contents = new LinkedHashMap<String, InputStream>();
+        Map<String, String> mimeTypes = new HashMap<String, String>();
+        for (int i = 0; i < 20; i++) {
+            contents.put("dir/file" + i + ".txt", new ByteArrayInputStream(("lorem ipsum " + i).getBytes()));
+            mimeTypes.put("dir/file" + i + ".txt", MAIN_FILE_MIME_TYPE);
+        }
+        contents.put(MAIN_FILE_PATH, new ByteArrayInputStream("updated".getBytes()));
+        List<ResourceMetadata> created = dl.createOrUpdateFiles(RO_URI, contents, mimeTypes);
+
+        assertEquals(21, created.size());
+        DLibraDataSource.getResourceMetadataCache().invalidateAll();
+        for (ResourceMetadata metadata : created) {
+            ResourceMetadata stored = dl.getFileInfo(RO_URI, metadata.getPath());
+            assertEquals("Checksum computed locally is the same as in dLibra", stored.getChecksum(),
+                metadata.getChecksum());
+        }
+        assertEquals("updated", IOUtils.toString(dl.getFileContents(RO_URI, MAIN_FILE_PATH)));
+        assertFalse("Empty folder is removed", dl.fileExists(RO_URI, "dir.emptyfolder"));
+    }
+
+
+    @Test
+    public final void testFilesMirror()
+            throws DigitalLibraryException, NotFoundException, ConflictException, IOException, AccessDeniedException {
+        DLibraDataSource dl = createResearchObject();
+        assertTrue(dl.fileExists(RO_URI, MAIN_FILE_PATH));
+        dl.createOrUpdateFile(RO_URI, "dir/file.txt", new ByteArrayInputStream("lorem ipsum".getBytes()),
+            MAIN_FILE_MIME_TYPE);
+        dl.createOrUpdateFile(RO_URI, "dir/other.txt", new ByteArrayInputStream("dolor".getBytes()),
+            MAIN_FILE_MIME_TYPE);
+        dl.deleteFile(RO_URI, "dir/other.txt");
+        assertTrue(dl.fileExists(RO_URI, "dir/file.txt"));
+        assertFalse(dl.fileExists(RO_URI, "dir/other.txt"));
+        assertEquals("lorem ipsum".length(), dl.getFileInfo(RO_URI, "dir/file.txt").getSize());
+        assertEquals("Mirror is in sync with dLibra", 0, dl.reconcileFilesMirror(RO_URI));
+    }
+
+
+    /**
+     * Check that reading files after the first read resolves the RO ids from the research object id cache, without a
+     * database transaction, and that every read is timed.
+     * 
+     * @throws DigitalLibraryException
+     * @throws ConflictException
+     * @throws NotFoundException
+     * @throws IOException
+     * @throws AccessDeniedException
+     */
+    @Test
+    public final void testGetFileContentsCachedIds()
+            throws DigitalLibraryException, NotFoundException, ConflictException, IOException, AccessDeniedException {
+        DLibraDataSource dl = createResearchObject();
+        LatencyRecorder latency = DLibraDataSource.getFileContentsLatency();
+        latency.reset();
+        long hits = DLibraDataSource.getResearchObjectIdCache().getHitCount();
+        int reads = 3;
+        for (int i = 0; i < reads; i++) {
+            InputStream in = dl.getFileContents(RO_URI, MAIN_FILE_PATH);
+            try {
+                assertEquals(MAIN_FILE_CONTENT, IOUtils.toString(in));
+            } finally {
+                in.close();
+            }
+        }
+        assertEquals(reads, latency.getCount());
+        assertEquals("Reads after the first one use the cached ids", reads - 1, DLibraDataSource
+                .getResearchObjectIdCache().getHitCount()
+                - hits);
+    }
+
+
+    /**
+     * Check that the duration of every phase of creating a data source is reported and fits in the total time.
+     * 
+     * @throws DigitalLibraryException
+     * @throws IOException
+     */
+    @Test
+    public final void testStartupTimes()
+            throws DigitalLibraryException, IOException {
+        DLibraDataSource dlA = new DLibraDataSource(host, port, workspacesDirectory, collectionId, ADMIN_ID,
+                ADMIN_PASSWORD);
+        Map<String, Long> times = dlA.getStartupTimes();
+        for (String phase : new String[] { "metadataServer", "contentServer", "userServer", "services", "helpers",
+                "total" }) {
+            assertTrue(phase, times.containsKey(phase));
+            assertTrue(phase, times.get(phase) >= 0);
+            assertTrue(phase, times.get(phase) <= times.get("total"));
+        }
+    }
+
+
     @Test
     public final void testGetUserProfile()
             throws DigitalLibraryException, IOException, NotFoundException {
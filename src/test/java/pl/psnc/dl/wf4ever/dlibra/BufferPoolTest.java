@@ -0,0 +1,183 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.BufferPool;
+
+/**
+ * BufferPool unit tests and a throughput comparison with {@link IOUtils#copy(InputStream, OutputStream)}. Set the
+ * system property "buffer.benchmark.bytes" to benchmark with larger amounts of data.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class BufferPoolTest {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(BufferPoolTest.class);
+
+    /** Simulated cost of a single remote write, in nanoseconds. */
+    private static final long WRITE_COST = 50 * 1000;
+
+
+    /**
+     * Test that data of a known size read in small chunks is copied intact in large blocks.
+     * 
+     * @throws IOException
+     *             when copying fails
+     */
+    @Test
+    public void testCopy()
+            throws IOException {
+        BufferPool pool = new BufferPool(new int[] { 1024, 8192 }, 2);
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WriteCountingOutputStream counting = new WriteCountingOutputStream(out, 0);
+        Assert.assertEquals(data.length, pool.copy(new ChunkedInputStream(data, 100), counting, data.length));
+        Assert.assertArrayEquals(data, out.toByteArray());
+        Assert.assertEquals("Writes are full buffers", (data.length + 8191) / 8192, counting.writes);
+    }
+
+
+    /**
+     * Test that data of an unknown size is written after each read.
+     * 
+     * @throws IOException
+     *             when copying fails
+     */
+    @Test
+    public void testCopyUnknownSize()
+            throws IOException {
+        BufferPool pool = new BufferPool(new int[] { 1024, 8192 }, 2);
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WriteCountingOutputStream counting = new WriteCountingOutputStream(out, 0);
+        Assert.assertEquals(data.length, pool.copy(new ChunkedInputStream(data, 100), counting, -1));
+        Assert.assertArrayEquals(data, out.toByteArray());
+        Assert.assertEquals("Each read is written", data.length / 100, counting.writes);
+    }
+
+
+    /**
+     * Test that buffers are sized to the file and reused.
+     */
+    @Test
+    public void testAcquire() {
+        BufferPool pool = new BufferPool(new int[] { 1024, 8192 }, 1);
+        byte[] small = pool.acquire(100);
+        byte[] large = pool.acquire(5000);
+        Assert.assertEquals(1024, small.length);
+        Assert.assertEquals(8192, large.length);
+        Assert.assertEquals("Unknown size", 8192, pool.acquire(-1).length);
+        Assert.assertEquals("Unknown size", 64 * 1024, new BufferPool().acquire(-1).length);
+        Assert.assertEquals("Larger than the largest buffer", 8192, pool.acquire(100000).length);
+        pool.release(small);
+        pool.release(new byte[1024]);
+        Assert.assertSame(small, pool.acquire(1000));
+        Assert.assertNotSame("Only one free buffer is kept", small, pool.acquire(1000));
+        Assert.assertEquals(1, pool.getReusedCount());
+    }
+
+
+    /**
+     * Compare the time of copying to an output stream with a fixed cost per write, like a dLibra version output
+     * stream.
+     * 
+     * @throws IOException
+     *             when copying fails
+     */
+    @Test
+    public void testThroughput()
+            throws IOException {
+        int bytes = Integer.parseInt(System.getProperty("buffer.benchmark.bytes", "" + 16 * 1024 * 1024));
+        byte[] data = new byte[bytes];
+        new Random(1).nextBytes(data);
+
+        WriteCountingOutputStream out = new WriteCountingOutputStream(new ByteArrayOutputStream(bytes), WRITE_COST);
+        long start = System.nanoTime();
+        IOUtils.copy(new ChunkedInputStream(data, 8192), out);
+        double ioUtilsTime = (System.nanoTime() - start) / 1e6;
+        long ioUtilsWrites = out.writes;
+
+        out = new WriteCountingOutputStream(new ByteArrayOutputStream(bytes), WRITE_COST);
+        start = System.nanoTime();
+        new BufferPool().copy(new ChunkedInputStream(data, 8192), out, bytes);
+        double poolTime = (System.nanoTime() - start) / 1e6;
+
+        LOGGER.info(String.format("Copied %d bytes: IOUtils %.1f ms in %d writes, BufferPool %.1f ms in %d writes",
+            bytes, ioUtilsTime, ioUtilsWrites, poolTime, out.writes));
+        Assert.assertTrue(out.writes < ioUtilsWrites);
+    }
+
+
+    /**
+     * Returns data in chunks of a limited size, like a network stream.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int chunk;
+
+
+        public ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+
+    /**
+     * Counts the writes and waits for a fixed time in each of them.
+     */
+    private static class WriteCountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final long cost;
+
+        private long writes = 0;
+
+
+        public WriteCountingOutputStream(OutputStream out, long cost) {
+            this.out = out;
+            this.cost = cost;
+        }
+
+
+        @Override
+        public void write(int b)
+                throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException {
+            writes++;
+            if (cost > 0) {
+                LockSupport.parkNanos(cost);
+            }
+            out.write(b, off, len);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.BytePipe;
+
+/**
+ * Throughput comparison of BytePipe and the piped streams. The class name does not end with "Test", so the benchmark
+ * is not part of the unit test run. Run it with -Dtest=BytePipeBenchmark, and set the system property
+ * "pipe.benchmark.bytes" to transfer larger amounts of data, i.e. -Dpipe.benchmark.bytes=4294967296.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class BytePipeBenchmark {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(BytePipeBenchmark.class);
+
+
+    /**
+     * Compare the throughput of BytePipe and the piped streams.
+     * 
+     * @throws Exception
+     *             when the transfer failed
+     */
+    @Test
+    public void testThroughput()
+            throws Exception {
+        long bytes = Long.parseLong(System.getProperty("pipe.benchmark.bytes", "" + 64 * 1024 * 1024));
+
+        PipedInputStream pipedIn = new PipedInputStream();
+        PipedOutputStream pipedOut = new PipedOutputStream(pipedIn);
+        long start = System.nanoTime();
+        BytePipeTest.transfer(pipedIn, pipedOut, bytes, BytePipeTest.BLOCK_SIZE);
+        double pipedSpeed = bytes * 1e9 / (System.nanoTime() - start) / (1024 * 1024);
+
+        BytePipe pipe = new BytePipe();
+        start = System.nanoTime();
+        BytePipeTest.transfer(pipe.getInputStream(), pipe.getOutputStream(), bytes, BytePipeTest.BLOCK_SIZE);
+        double pipeSpeed = bytes * 1e9 / (System.nanoTime() - start) / (1024 * 1024);
+
+        LOGGER.info(String.format("Transferred %d bytes: piped streams %.1f MB/s, BytePipe %.1f MB/s", bytes,
+            pipedSpeed, pipeSpeed));
+    }
+
+}
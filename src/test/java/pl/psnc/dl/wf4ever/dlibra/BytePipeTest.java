@@ -0,0 +1,214 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.BytePipe;
+
+/**
+ * BytePipe unit tests. The throughput is compared with the piped streams in {@link BytePipeBenchmark}.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class BytePipeTest {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(BytePipeTest.class);
+
+    /** Block size used by writers, close to what ZipOutputStream writes. */
+    static final int BLOCK_SIZE = 8192;
+
+
+    /**
+     * Test that the data is read in the same order as it was written, with blocks larger than the pipe.
+     * 
+     * @throws Exception
+     *             when the transfer failed
+     */
+    @Test
+    public void testTransfer()
+            throws Exception {
+        BytePipe pipe = new BytePipe(1000);
+        transfer(pipe.getInputStream(), pipe.getOutputStream(), 3 * 1024 * 1024, 4099);
+    }
+
+
+    /**
+     * Test that the writer fails when the reader closes the pipe.
+     * 
+     * @throws Exception
+     *             when the test thread is interrupted
+     */
+    @Test
+    public void testReaderClosed()
+            throws Exception {
+        BytePipe pipe = new BytePipe(16);
+        final OutputStream out = pipe.getOutputStream();
+        final IOException[] thrown = new IOException[1];
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    out.write(new byte[1024]);
+                } catch (IOException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        writer.start();
+        pipe.getInputStream().read(new byte[8]);
+        pipe.getInputStream().close();
+        writer.join(5000);
+        Assert.assertNotNull("Writer should fail", thrown[0]);
+    }
+
+
+    /**
+     * Test that the writer fails when nothing is read for the write timeout.
+     * 
+     * @throws IOException
+     *             when writing fails unexpectedly
+     */
+    @Test
+    public void testReaderAbandoned()
+            throws IOException {
+        BytePipe pipe = new BytePipe(16, 100);
+        OutputStream out = pipe.getOutputStream();
+        out.write(new byte[16]);
+        try {
+            out.write(1);
+            Assert.fail("Writer should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            out.write(1);
+            Assert.fail("Writes to an abandoned pipe should fail immediately");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * Test that the writer fails when the thread that read from the pipe has died.
+     * 
+     * @throws Exception
+     *             when the reading thread fails
+     */
+    @Test
+    public void testReaderDead()
+            throws Exception {
+        BytePipe pipe = new BytePipe(16, 60000);
+        final InputStream in = pipe.getInputStream();
+        OutputStream out = pipe.getOutputStream();
+        out.write(new byte[16]);
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    in.read();
+                } catch (IOException e) {
+                    LOGGER.error("Read failed", e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        long start = System.currentTimeMillis();
+        try {
+            out.write(new byte[2]);
+            Assert.fail("Writer should fail");
+        } catch (IOException e) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        }
+    }
+
+
+    /**
+     * Test that the reader gets the end of stream after the remaining data when the writer closes the pipe.
+     * 
+     * @throws IOException
+     *             when reading fails
+     */
+    @Test
+    public void testWriterClosed()
+            throws IOException {
+        BytePipe pipe = new BytePipe(16);
+        pipe.getOutputStream().write(new byte[] { 1, 2, 3 });
+        pipe.getOutputStream().close();
+        InputStream in = pipe.getInputStream();
+        Assert.assertEquals(3, in.available());
+        Assert.assertEquals(1, in.read());
+        Assert.assertEquals(2, in.read(new byte[10]));
+        Assert.assertEquals(-1, in.read());
+    }
+
+
+    /**
+     * Write random data in one thread, read it in this thread and check that it is the same.
+     * 
+     * @param in
+     *            reading end
+     * @param out
+     *            writing end
+     * @param bytes
+     *            number of bytes to transfer
+     * @param blockSize
+     *            size of blocks written
+     * @throws Exception
+     *             when the transfer failed
+     */
+    static void transfer(InputStream in, final OutputStream out, final long bytes, final int blockSize)
+            throws Exception {
+        final CRC32 writtenCrc = new CRC32();
+        final Exception[] thrown = new Exception[1];
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+                byte[] block = new byte[blockSize];
+                new Random(1).nextBytes(block);
+                try {
+                    long left = bytes;
+                    while (left > 0) {
+                        int n = (int) Math.min(left, block.length);
+                        out.write(block, 0, n);
+                        writtenCrc.update(block, 0, n);
+                        left -= n;
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        writer.start();
+        CRC32 readCrc = new CRC32();
+        byte[] buffer = new byte[BLOCK_SIZE * 2];
+        long read = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            readCrc.update(buffer, 0, n);
+            read += n;
+        }
+        in.close();
+        writer.join();
+        if (thrown[0] != null) {
+            throw thrown[0];
+        }
+        Assert.assertEquals(bytes, read);
+        Assert.assertEquals(writtenCrc.getValue(), readCrc.getValue());
+    }
+
+}
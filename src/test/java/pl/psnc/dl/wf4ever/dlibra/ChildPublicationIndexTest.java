@@ -0,0 +1,65 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.ChildPublicationIndex;
+import pl.psnc.dlibra.metadata.PublicationId;
+
+/**
+ * ChildPublicationIndex unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ChildPublicationIndexTest {
+
+    /**
+     * Test that created and deleted publications are reflected in a loaded group.
+     */
+    @Test
+    public void testAddAndRemove() {
+        ChildPublicationIndex index = new ChildPublicationIndex(100, 60000);
+        PublicationId group = new PublicationId(1L);
+        Assert.assertNull(index.get(group));
+
+        Map<String, PublicationId> children = new HashMap<String, PublicationId>();
+        children.put("v1", new PublicationId(2L));
+        index.put(group, children, index.getStamp(group));
+        Assert.assertEquals(Long.valueOf(2), index.get(group).get("v1").getId());
+
+        index.add(group, "v2", new PublicationId(3L));
+        Assert.assertEquals(Long.valueOf(3), index.get(group).get("v2").getId());
+
+        index.remove(new PublicationId(2L));
+        Assert.assertNull(index.get(group).get("v1"));
+        Assert.assertEquals(1, index.getMissCount());
+        Assert.assertEquals(3, index.getHitCount());
+
+        index.remove(group);
+        Assert.assertNull(index.get(group));
+    }
+
+
+    /**
+     * Test that a group listed concurrently with a modification of that group is not stored.
+     */
+    @Test
+    public void testStaleListing() {
+        ChildPublicationIndex index = new ChildPublicationIndex(100, 60000);
+        PublicationId group = new PublicationId(1L);
+        PublicationId other = new PublicationId(5L);
+        long stamp = index.getStamp(group);
+        long otherStamp = index.getStamp(other);
+        index.add(group, "v1", new PublicationId(2L));
+        Map<String, PublicationId> children = index.put(group, new HashMap<String, PublicationId>(), stamp);
+        Assert.assertTrue(children.isEmpty());
+        Assert.assertNull(index.get(group));
+        index.put(other, new HashMap<String, PublicationId>(), otherStamp);
+        Assert.assertNotNull("Listing of another group is stored", index.get(other));
+    }
+
+}
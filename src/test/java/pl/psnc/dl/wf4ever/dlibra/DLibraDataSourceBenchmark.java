@@ -0,0 +1,193 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Date;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dl.DigitalLibrary;
+import pl.psnc.dl.wf4ever.dlibra.helpers.DLibraDataSource;
+import pl.psnc.dl.wf4ever.dlibra.helpers.DLibraDataSourcePool;
+import pl.psnc.dl.wf4ever.dlibra.helpers.LatencyRecorder;
+
+/**
+ * Latency benchmarks of a data source connected to the dLibra instance from connection.properties. The class name
+ * does not end with "Test", so the benchmarks are not part of the unit test run. Run them with
+ * -Dtest=DLibraDataSourceBenchmark.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class DLibraDataSourceBenchmark {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(DLibraDataSourceBenchmark.class);
+
+    private static final String MAIN_FILE_MIME_TYPE = "text/plain";
+
+    private static final String MAIN_FILE_CONTENT = "test";
+
+    private static final String MAIN_FILE_PATH = "mainFile.txt";
+
+    private static final String USERNAME = "John Doe";
+
+    private static final String ADMIN_ID = "wfadmin";
+
+    private static final String ADMIN_PASSWORD = "wfadmin!!!";
+
+    private static final String USER_ID = "benchmark-" + new Date().getTime();
+
+    private static final String USER_PASSWORD = "password";
+
+    private static final URI RO_URI = URI.create("http://example.org/ROs/benchmark/");
+
+    private String host;
+
+    private int port;
+
+    private long workspacesDirectory;
+
+    private long collectionId;
+
+    /** Data source of the benchmark user. */
+    private DLibraDataSource dl;
+
+
+    /**
+     * Create the benchmark user.
+     * 
+     * @throws Exception
+     *             when the connection properties can't be read or dLibra fails
+     */
+    @Before
+    public void setUp()
+            throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("connection.properties");
+        Properties properties = new Properties();
+        properties.load(inputStream);
+        host = properties.getProperty("host");
+        port = Integer.parseInt(properties.getProperty("port"));
+        workspacesDirectory = Long.parseLong(properties.getProperty("workspacesDir"));
+        collectionId = Long.parseLong(properties.getProperty("collectionId"));
+        DigitalLibrary dlA = new DLibraDataSource(host, port, workspacesDirectory, collectionId, ADMIN_ID,
+                ADMIN_PASSWORD);
+        dlA.createOrUpdateUser(USER_ID, USER_PASSWORD, USERNAME);
+        dl = new DLibraDataSource(host, port, workspacesDirectory, collectionId, USER_ID, USER_PASSWORD);
+    }
+
+
+    /**
+     * Delete the benchmark RO and user.
+     */
+    @After
+    public void tearDown() {
+        try {
+            dl.deleteResearchObject(RO_URI);
+        } catch (Exception e) {
+            // not created
+        }
+        try {
+            DigitalLibrary dlA = new DLibraDataSource(host, port, workspacesDirectory, collectionId, ADMIN_ID,
+                    ADMIN_PASSWORD);
+            dlA.deleteUser(USER_ID);
+        } catch (Exception e) {
+            LOGGER.warn("Could not delete " + USER_ID, e);
+        }
+    }
+
+
+    /**
+     * Read a small file many times, reporting the p50 and p99 latency.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @Test
+    public void testGetFileContentsLatency()
+            throws Exception {
+        dl.createResearchObject(RO_URI, new ByteArrayInputStream(MAIN_FILE_CONTENT.getBytes()), MAIN_FILE_PATH,
+            MAIN_FILE_MIME_TYPE);
+        LatencyRecorder latency = DLibraDataSource.getFileContentsLatency();
+        latency.reset();
+        int reads = 200;
+        for (int i = 0; i < reads; i++) {
+            InputStream in = dl.getFileContents(RO_URI, MAIN_FILE_PATH);
+            try {
+                Assert.assertEquals(MAIN_FILE_CONTENT, IOUtils.toString(in));
+            } finally {
+                in.close();
+            }
+        }
+        LOGGER.info(String.format("getFileContents of %d bytes: p50 %.3f ms, p99 %.3f ms", MAIN_FILE_CONTENT.length(),
+            latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6));
+    }
+
+
+    /**
+     * Measure the time of creating an RO, including its workspace, version and published edition.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @Test
+    public void testCreateResearchObjectLatency()
+            throws Exception {
+        LatencyRecorder latency = new LatencyRecorder();
+        int ros = 10;
+        for (int i = 0; i < ros; i++) {
+            URI uri = RO_URI.resolve("latency-" + i + "/");
+            long start = System.nanoTime();
+            dl.createResearchObject(uri, new ByteArrayInputStream(MAIN_FILE_CONTENT.getBytes()), MAIN_FILE_PATH,
+                MAIN_FILE_MIME_TYPE);
+            latency.record(System.nanoTime() - start);
+            try {
+                InputStream in = dl.getFileContents(uri, MAIN_FILE_PATH);
+                try {
+                    Assert.assertEquals(MAIN_FILE_CONTENT, IOUtils.toString(in));
+                } finally {
+                    in.close();
+                }
+            } finally {
+                dl.deleteResearchObject(uri);
+            }
+        }
+        LOGGER.info(String.format("createResearchObject: p50 %.1f ms, p99 %.1f ms", latency.getPercentile(50) / 1e6,
+            latency.getPercentile(99) / 1e6));
+    }
+
+
+    /**
+     * Compare the time of creating a data source for every request with reusing pooled data sources.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @Test
+    public void testDataSourcePool()
+            throws Exception {
+        int requests = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            new DLibraDataSource(host, port, workspacesDirectory, collectionId, USER_ID, USER_PASSWORD);
+        }
+        long constructed = System.nanoTime() - start;
+
+        DLibraDataSourcePool pool = new DLibraDataSourcePool(host, port, workspacesDirectory, collectionId);
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            pool.get(USER_ID, USER_PASSWORD);
+        }
+        long pooled = System.nanoTime() - start;
+        LOGGER.info(String.format("%d data sources: constructed %.1f ms, pooled %.1f ms", requests,
+            constructed / 1e6, pooled / 1e6));
+    }
+
+}
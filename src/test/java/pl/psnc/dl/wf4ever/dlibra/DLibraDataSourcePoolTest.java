@@ -0,0 +1,137 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dl.DigitalLibrary;
+import pl.psnc.dl.wf4ever.dlibra.helpers.DLibraDataSource;
+import pl.psnc.dl.wf4ever.dlibra.helpers.DLibraDataSourcePool;
+
+/**
+ * DLibraDataSourcePool tests, using the dLibra instance from connection.properties.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class DLibraDataSourcePoolTest {
+
+    private static final String USERNAME = "John Doe";
+
+    private static final String ADMIN_ID = "wfadmin";
+
+    private static final String ADMIN_PASSWORD = "wfadmin!!!";
+
+    private static final String USER_ID = "pool-" + new Date().getTime();
+
+    private static final String USER_PASSWORD = "password";
+
+    private String host;
+
+    private int port;
+
+    private long workspacesDirectory;
+
+    private long collectionId;
+
+    /** Pool under test. */
+    private DLibraDataSourcePool pool;
+
+
+    /**
+     * Create the test user and an empty pool.
+     * 
+     * @throws Exception
+     *             when the connection properties can't be read or dLibra fails
+     */
+    @Before
+    public void setUp()
+            throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("connection.properties");
+        Properties properties = new Properties();
+        properties.load(inputStream);
+        host = properties.getProperty("host");
+        port = Integer.parseInt(properties.getProperty("port"));
+        workspacesDirectory = Long.parseLong(properties.getProperty("workspacesDir"));
+        collectionId = Long.parseLong(properties.getProperty("collectionId"));
+        DigitalLibrary dlA = new DLibraDataSource(host, port, workspacesDirectory, collectionId, ADMIN_ID,
+                ADMIN_PASSWORD);
+        dlA.createOrUpdateUser(USER_ID, USER_PASSWORD, USERNAME);
+        pool = new DLibraDataSourcePool(host, port, workspacesDirectory, collectionId);
+    }
+
+
+    /**
+     * Delete the test user.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @After
+    public void tearDown()
+            throws Exception {
+        DigitalLibrary dlA = new DLibraDataSource(host, port, workspacesDirectory, collectionId, ADMIN_ID,
+                ADMIN_PASSWORD);
+        dlA.deleteUser(USER_ID);
+    }
+
+
+    /**
+     * Test that a user gets the same data source every time and that the counters reflect it.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @Test
+    public void testReuse()
+            throws Exception {
+        int requests = 5;
+        DLibraDataSource first = pool.get(USER_ID, USER_PASSWORD);
+        for (int i = 1; i < requests; i++) {
+            Assert.assertSame(first, pool.get(USER_ID, USER_PASSWORD));
+        }
+        Assert.assertEquals(1, pool.getCreatedCount());
+        Assert.assertEquals(requests - 1, pool.getReusedCount());
+        Assert.assertEquals(1, pool.size());
+    }
+
+
+    /**
+     * Test that users don't share data sources.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @Test
+    public void testOtherUser()
+            throws Exception {
+        DLibraDataSource user = pool.get(USER_ID, USER_PASSWORD);
+        Assert.assertNotSame(user, pool.get(ADMIN_ID, ADMIN_PASSWORD));
+        Assert.assertEquals(2, pool.getCreatedCount());
+        Assert.assertEquals(2, pool.size());
+    }
+
+
+    /**
+     * Test that an invalidated user gets a new data source and the other users keep theirs.
+     * 
+     * @throws Exception
+     *             when dLibra fails
+     */
+    @Test
+    public void testInvalidate()
+            throws Exception {
+        DLibraDataSource user = pool.get(USER_ID, USER_PASSWORD);
+        DLibraDataSource admin = pool.get(ADMIN_ID, ADMIN_PASSWORD);
+        pool.invalidate(USER_ID);
+        Assert.assertSame(admin, pool.get(ADMIN_ID, ADMIN_PASSWORD));
+        Assert.assertNotSame(user, pool.get(USER_ID, USER_PASSWORD));
+        Assert.assertEquals(3, pool.getCreatedCount());
+    }
+
+}
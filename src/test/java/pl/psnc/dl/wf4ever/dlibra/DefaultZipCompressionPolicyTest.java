@@ -0,0 +1,51 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.util.zip.Deflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.DefaultZipCompressionPolicy;
+import pl.psnc.dl.wf4ever.dlibra.helpers.ZipCompressionPolicy;
+
+/**
+ * @author piotrekhol
+ * 
+ */
+public class DefaultZipCompressionPolicyTest {
+
+    private final ZipCompressionPolicy policy = new DefaultZipCompressionPolicy(Deflater.BEST_SPEED);
+
+
+    /**
+     * Test for
+     * {@link pl.psnc.dl.wf4ever.dlibra.helpers.DefaultZipCompressionPolicy#getCompressionLevel(String, String, long)}.
+     */
+    @Test
+    public void testGetCompressionLevel() {
+        Assert.assertEquals("Text file", Deflater.BEST_SPEED,
+            policy.getCompressionLevel("dir/file1.txt", "text/plain", 1000));
+        Assert.assertEquals("Compressed MIME type", Deflater.NO_COMPRESSION,
+            policy.getCompressionLevel("dir/file3", "image/jpeg", 1000));
+        Assert.assertEquals("MIME type with parameters", Deflater.NO_COMPRESSION,
+            policy.getCompressionLevel("dir/file3", "Application/Zip; foo=bar", 1000));
+        Assert.assertEquals("Compressed extension", Deflater.NO_COMPRESSION,
+            policy.getCompressionLevel("dir/file3.JPG", "application/octet-stream", 1000));
+        Assert.assertEquals("Extension of a folder", Deflater.BEST_SPEED,
+            policy.getCompressionLevel("dir.zip/file", null, 1000));
+        Assert.assertEquals("Small file", Deflater.NO_COMPRESSION,
+            policy.getCompressionLevel("dir/file1.txt", "text/plain", 10));
+        Assert.assertEquals("Unknown size", Deflater.BEST_SPEED,
+            policy.getCompressionLevel("dir/file1.txt", "text/plain", -1));
+    }
+
+
+    /**
+     * Test that invalid compression levels are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new DefaultZipCompressionPolicy(10);
+    }
+
+}
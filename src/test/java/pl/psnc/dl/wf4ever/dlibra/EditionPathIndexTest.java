@@ -0,0 +1,98 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.EditionPathIndex;
+import pl.psnc.dl.wf4ever.dlibra.helpers.EditionPathIndex.PathTrie;
+
+/**
+ * EditionPathIndex unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class EditionPathIndexTest {
+
+    /**
+     * Test counting the entries of folders.
+     */
+    @Test
+    public void testCountEntries() {
+        PathTrie trie = new EditionPathIndex(100, 60000).put(1,
+            Arrays.asList("/manifest.rdf", "/dir/a.txt", "/dir/sub/b.txt", "/dir/empty.emptyfolder"), 0);
+        Assert.assertEquals(4, trie.size());
+        Assert.assertEquals(3, trie.countEntries("dir/"));
+        Assert.assertEquals(3, trie.countEntries("/dir"));
+        Assert.assertEquals(1, trie.countEntries("dir/sub/"));
+        Assert.assertEquals("Own marker is not counted", 0, trie.countEntries("dir/empty/"));
+        Assert.assertEquals(0, trie.countEntries("nothing/"));
+    }
+
+
+    /**
+     * Test finding the empty folder markers above a file.
+     */
+    @Test
+    public void testGetMarkedAncestors() {
+        PathTrie trie = new EditionPathIndex(100, 60000).put(1,
+            Arrays.asList("/a.emptyfolder", "/a/b/c.emptyfolder", "/a/b/file.txt"), 0);
+        Assert.assertEquals(Arrays.asList("a.emptyfolder", "a/b/c.emptyfolder"), trie.getMarkedAncestors("a/b/c/d.txt"));
+        Assert.assertEquals(Arrays.asList("a.emptyfolder"), trie.getMarkedAncestors("a/b/file.txt"));
+        Assert.assertTrue(trie.getMarkedAncestors("x/y.txt").isEmpty());
+    }
+
+
+    /**
+     * Test that the trie is updated incrementally and pruned.
+     */
+    @Test
+    public void testAddRemove() {
+        EditionPathIndex index = new EditionPathIndex(100, 60000);
+        index.put(1, Arrays.asList("/dir.emptyfolder"), index.getStamp(1));
+        index.add(1, "dir/file.txt");
+        index.remove(1, "dir.emptyfolder");
+        PathTrie trie = index.get(1);
+        Assert.assertEquals(1, trie.countEntries("dir"));
+        Assert.assertTrue(trie.getMarkedAncestors("dir/file.txt").isEmpty());
+
+        index.remove(1, "dir/file.txt");
+        index.remove(1, "dir/file.txt");
+        index.remove(1, "other/file.txt");
+        Assert.assertEquals(0, trie.size());
+        Assert.assertEquals(0, trie.countEntries("dir"));
+
+        index.add(1, "dir/file.txt");
+        index.add(1, "dir/file.txt");
+        Assert.assertEquals("Paths are counted once", 1, trie.size());
+    }
+
+
+    /**
+     * Test that a trie built concurrently with a modification of its edition is not cached.
+     */
+    @Test
+    public void testStaleBuild() {
+        EditionPathIndex index = new EditionPathIndex(100, 60000);
+        long stamp = index.getStamp(1);
+        index.add(2, "file.txt");
+        index.put(1, Arrays.asList("/file.txt"), stamp);
+        Assert.assertNotNull("Modification of another edition is ignored", index.get(1));
+        stamp = index.getStamp(1);
+        index.add(1, "other.txt");
+        index.put(1, Arrays.asList("/file.txt"), stamp);
+        Assert.assertEquals(2, index.get(1).size());
+        index.invalidate(1);
+        stamp = index.getStamp(1);
+        index.remove(1, "file.txt");
+        index.put(1, Arrays.asList("/file.txt"), stamp);
+        Assert.assertNull(index.get(1));
+        index.put(1, Arrays.asList("/file.txt"), index.getStamp(1));
+        Assert.assertNotNull(index.get(1));
+        index.invalidate(1);
+        Assert.assertNull(index.get(1));
+    }
+
+}
@@ -0,0 +1,103 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.ExistingPathsFilter;
+
+/**
+ * ExistingPathsFilter unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ExistingPathsFilterTest {
+
+    private static final URI RO = URI.create("http://example.org/ROs/foobar/");
+
+
+    /**
+     * Test that stored files may exist and most other files don't.
+     */
+    @Test
+    public void testMightContain() {
+        ExistingPathsFilter filter = new ExistingPathsFilter();
+        Assert.assertNull("No filter yet", filter.mightContain(RO, 1, "manifest.rdf"));
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            paths.add("/dir/file" + i + ".txt");
+        }
+        filter.put(RO, 1, paths, filter.getStamp(RO));
+        for (String path : paths) {
+            Assert.assertTrue(filter.mightContain(RO, 1, path));
+            Assert.assertTrue(filter.mightContain(RO, 1, path.substring(1)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (filter.mightContain(RO, 1, "dir/other" + i + ".txt")) {
+                filter.recordPositive(false);
+            }
+        }
+        Assert.assertTrue("False positive rate is " + filter.getFalsePositiveRate(),
+            filter.getFalsePositiveRate() < 0.05);
+        Assert.assertEquals(1000, filter.getNegativeCount() + filter.getFalsePositiveCount());
+    }
+
+
+    /**
+     * Test that written files are added and a full filter is discarded.
+     */
+    @Test
+    public void testAdd() {
+        ExistingPathsFilter filter = new ExistingPathsFilter();
+        filter.put(RO, 1, Arrays.asList("/manifest.rdf"), filter.getStamp(RO));
+        filter.add(RO, 1, "new.txt");
+        filter.add(URI.create("http://example.org/ROs/other/"), 1, "other.txt");
+        Assert.assertTrue(filter.mightContain(RO, 1, "new.txt"));
+        Assert.assertNull("Filter of another edition is not used", filter.mightContain(RO, 2, "new.txt"));
+        for (int i = 0; i < 100; i++) {
+            filter.add(RO, 1, "file" + i + ".txt");
+        }
+        Assert.assertFalse("Full filter is discarded", filter.contains(RO, 1));
+    }
+
+
+    /**
+     * Test that a filter built concurrently with a write is not cached.
+     */
+    @Test
+    public void testStaleBuild() {
+        ExistingPathsFilter filter = new ExistingPathsFilter();
+        long stamp = filter.getStamp(RO);
+        filter.add(URI.create("http://example.org/ROs/other/"), 1, "other.txt");
+        filter.add(RO, 1, "new.txt");
+        filter.put(RO, 1, Arrays.asList("/manifest.rdf"), stamp);
+        Assert.assertFalse(filter.contains(RO, 1));
+        stamp = filter.getStamp(RO);
+        filter.add(URI.create("http://example.org/ROs/other/"), 1, "other2.txt");
+        filter.put(RO, 1, Arrays.asList("/manifest.rdf"), stamp);
+        Assert.assertTrue("Write to another RO is ignored", filter.contains(RO, 1));
+        Assert.assertTrue(filter.contains(RO, 1));
+        filter.add(RO, 2, "new.txt");
+        Assert.assertFalse("Write to another edition discards the filter", filter.contains(RO, 1));
+        filter.put(RO, 2, Arrays.asList("/manifest.rdf"), filter.getStamp(RO));
+        filter.invalidate(RO);
+        Assert.assertFalse(filter.contains(RO, 2));
+    }
+
+
+    /**
+     * Test that an expired filter is not used, so that files written by other instances are found.
+     */
+    @Test
+    public void testExpiry() {
+        ExistingPathsFilter filter = new ExistingPathsFilter(10, 0.01, 0);
+        filter.put(RO, 1, Arrays.asList("/manifest.rdf"), filter.getStamp(RO));
+        Assert.assertNull(filter.mightContain(RO, 1, "new.txt"));
+    }
+
+}
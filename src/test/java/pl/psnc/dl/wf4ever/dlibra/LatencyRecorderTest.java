@@ -0,0 +1,53 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.LatencyRecorder;
+
+/**
+ * LatencyRecorder unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class LatencyRecorderTest {
+
+    /**
+     * Test the percentiles of a known set of samples.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder(1000);
+        Assert.assertEquals("No samples", 0, recorder.getPercentile(50));
+        for (int i = 100; i >= 1; i--) {
+            recorder.record(i);
+        }
+        Assert.assertEquals(100, recorder.getCount());
+        Assert.assertEquals(50, recorder.getPercentile(50));
+        Assert.assertEquals(99, recorder.getPercentile(99));
+        Assert.assertEquals(100, recorder.getPercentile(100));
+        Assert.assertEquals(1, recorder.getPercentile(0.1));
+    }
+
+
+    /**
+     * Test that only the most recent samples are kept.
+     */
+    @Test
+    public void testRecentSamples() {
+        LatencyRecorder recorder = new LatencyRecorder(10);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            recorder.record(1);
+        }
+        Assert.assertEquals(20, recorder.getCount());
+        Assert.assertEquals(1, recorder.getPercentile(100));
+        recorder.reset();
+        Assert.assertEquals(0, recorder.getCount());
+        Assert.assertEquals(0, recorder.getPercentile(99));
+    }
+
+}
@@ -0,0 +1,54 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.LatestEditionIndex;
+import pl.psnc.dlibra.metadata.EditionId;
+import pl.psnc.dlibra.metadata.PublicationId;
+
+/**
+ * LatestEditionIndex unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class LatestEditionIndexTest {
+
+    /**
+     * Test that created editions replace the indexed ones.
+     */
+    @Test
+    public void testAdd() {
+        LatestEditionIndex index = new LatestEditionIndex(100, 60000);
+        PublicationId publication = new PublicationId(1L);
+        Assert.assertNull(index.get(publication));
+        index.put(publication, new EditionId(2L), index.getStamp(publication));
+        Assert.assertEquals(Long.valueOf(2), index.get(publication).getId());
+        index.add(publication, new EditionId(3L));
+        Assert.assertEquals(Long.valueOf(3), index.get(publication).getId());
+        index.invalidate(publication);
+        Assert.assertNull(index.get(publication));
+        Assert.assertEquals(2, index.getHitCount());
+        Assert.assertEquals(2, index.getMissCount());
+    }
+
+
+    /**
+     * Test that an edition found concurrently with a modification of its publication is not stored.
+     */
+    @Test
+    public void testStaleSearch() {
+        LatestEditionIndex index = new LatestEditionIndex(100, 60000);
+        PublicationId publication = new PublicationId(1L);
+        long stamp = index.getStamp(publication);
+        index.invalidate(new PublicationId(5L));
+        index.put(publication, new EditionId(2L), stamp);
+        Assert.assertNotNull("Modification of another publication is ignored", index.get(publication));
+        stamp = index.getStamp(publication);
+        index.add(publication, new EditionId(3L));
+        index.put(publication, new EditionId(2L), stamp);
+        Assert.assertEquals(Long.valueOf(3), index.get(publication).getId());
+    }
+
+}
@@ -0,0 +1,54 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.net.URI;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.ResearchObjectIdCache;
+import pl.psnc.dl.wf4ever.dlibra.hibernate.ResearchObject;
+
+/**
+ * ResearchObjectIdCache unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ResearchObjectIdCacheTest {
+
+    /** URI of the RO used in the tests. */
+    private static final URI RO = URI.create("http://example.org/ROs/foobar/");
+
+
+    /**
+     * Test that an RO loaded with a URI that is not normalized is found and invalidated by its normalized URI.
+     */
+    @Test
+    public void testNormalizedUri() {
+        ResearchObjectIdCache cache = new ResearchObjectIdCache(100, 60000);
+        URI uri = URI.create("http://example.org/ROs/other/../foobar/");
+        ResearchObject ro = ResearchObject.createDetached(RO, 1, 2, 3, 4);
+        ro.setUri(uri);
+        cache.put(ro, cache.getStamp(uri));
+        Assert.assertEquals(4, cache.get(RO).getDlEditionId());
+        Assert.assertEquals(4, cache.get(uri).getDlEditionId());
+        cache.invalidate(uri);
+        Assert.assertNull(cache.get(RO));
+    }
+
+
+    /**
+     * Test that an RO loaded concurrently with its deletion is not cached.
+     */
+    @Test
+    public void testStaleLoad() {
+        ResearchObjectIdCache cache = new ResearchObjectIdCache(100, 60000);
+        long stamp = cache.getStamp(RO);
+        cache.invalidate(RO);
+        cache.put(ResearchObject.createDetached(RO, 1, 2, 3, 4), stamp);
+        Assert.assertNull(cache.get(RO));
+        cache.put(ResearchObject.createDetached(RO, 1, 2, 3, 0), cache.getStamp(RO));
+        Assert.assertNull("Ids without an edition are not cached", cache.get(RO));
+    }
+
+}
@@ -1,9 +1,12 @@
 package pl.psnc.dl.wf4ever.dlibra;
 
 import java.net.URI;
+import java.util.concurrent.Future;
 
 import junit.framework.Assert;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
 import org.junit.AfterClass;
 import org.junit.Test;
 
@@ -34,6 +37,23 @@ public class ResearchObjectTest {
     }
 
 
+    /**
+     * Test that the background initialization returns the session factory and reports it as ready.
+     * 
+     * @throws Exception
+     *             when the initialization failed
+     */
+    @Test
+    public void testInitialization()
+            throws Exception {
+        Future<SessionFactory> initialization = HibernateUtil.initializeInBackground();
+        Assert.assertSame(initialization, HibernateUtil.initializeInBackground());
+        Assert.assertSame(HibernateUtil.getSessionFactory(), initialization.get());
+        Assert.assertTrue(HibernateUtil.isInitialized());
+        Assert.assertTrue(HibernateUtil.getBuildTime() >= 0);
+    }
+
+
     /**
      * Test correct initial values.
      */
@@ -85,6 +105,70 @@ public class ResearchObjectTest {
     }
 
 
+    /**
+     * Test that loading an RO again is served from the second-level cache and sees the updated ids.
+     */
+    @Test
+    public void testCache() {
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        ResearchObject ro = ResearchObject.create(roURI);
+        ro.setDlEditionId(4);
+        ro.save();
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+
+        SecondLevelCacheStatistics statistics = HibernateUtil.getCacheStatistics(ResearchObject.CACHE_REGION);
+        Assert.assertNotNull(statistics);
+        long hits = statistics.getHitCount();
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        ResearchObject ro2 = ResearchObject.findByUri(roURI);
+        ro2.setDlEditionId(5);
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+        Assert.assertEquals(hits + 1, statistics.getHitCount());
+
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        ResearchObject ro3 = ResearchObject.findByUri(roURI);
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+        Assert.assertEquals(hits + 2, statistics.getHitCount());
+        Assert.assertEquals("Cached RO has the updated id", 5, ro3.getDlEditionId());
+    }
+
+
+    /**
+     * Test that setting an id to the current value does not persist the RO and that changed ids are written at commit
+     * without calling save.
+     */
+    @Test
+    public void testDirtyTracking() {
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        ResearchObject ro = ResearchObject.findByUri(roURI);
+        if (ro != null) {
+            ro.delete();
+        }
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        ResearchObject ro2 = ResearchObject.create(roURI);
+        ro2.setDlWorkspaceId(0);
+        ro2.setDlEditionId(0);
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        Assert.assertNull("Unchanged RO is not saved", ResearchObject.findByUri(roURI));
+        ResearchObject ro3 = ResearchObject.create(roURI);
+        ro3.setDlWorkspaceId(1);
+        ro3.setDlEditionId(4);
+        ro3.setDlEditionId(5);
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+
+        HibernateUtil.getSessionFactory().getCurrentSession().beginTransaction();
+        ResearchObject ro4 = ResearchObject.findByUri(roURI);
+        HibernateUtil.getSessionFactory().getCurrentSession().getTransaction().commit();
+        Assert.assertNotNull(ro4);
+        Assert.assertEquals(1, ro4.getDlWorkspaceId());
+        Assert.assertEquals(5, ro4.getDlEditionId());
+    }
+
+
     /**
      * Test deleting the RO.
      */
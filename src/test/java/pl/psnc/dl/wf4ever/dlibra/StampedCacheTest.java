@@ -0,0 +1,63 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.StampedCache;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * StampedCache unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class StampedCacheTest {
+
+    /**
+     * Test that a value is discarded only if its own key is modified while it is loaded.
+     */
+    @Test
+    public void testPerKeyStamps() {
+        StampedCache<String, String> cache = new StampedCache<String, String>(CacheBuilder.newBuilder()
+                .<String, String> build());
+        long stamp = cache.getStamp("a");
+        cache.invalidate("b");
+        cache.touch("c");
+        Assert.assertTrue(cache.put("a", "1", stamp));
+        Assert.assertEquals("1", cache.get("a"));
+
+        stamp = cache.getStamp("a");
+        cache.touch("a");
+        Assert.assertFalse(cache.put("a", "2", stamp));
+        Assert.assertEquals("1", cache.get("a"));
+
+        stamp = cache.getStamp("a");
+        cache.invalidate("a");
+        Assert.assertFalse(cache.put("a", "2", stamp));
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+
+    /**
+     * Test that modifications of unknown keys discard all values being loaded.
+     */
+    @Test
+    public void testTouchAll() {
+        StampedCache<String, String> cache = new StampedCache<String, String>(CacheBuilder.newBuilder()
+                .<String, String> build());
+        long stamp = cache.getStamp("a");
+        cache.touchAll();
+        Assert.assertFalse(cache.put("a", "1", stamp));
+        cache.update("a", "2");
+        stamp = cache.getStamp("b");
+        cache.invalidateAll();
+        Assert.assertFalse(cache.put("b", "1", stamp));
+        Assert.assertNull(cache.peek("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+}
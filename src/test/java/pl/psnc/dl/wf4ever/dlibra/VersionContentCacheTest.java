@@ -0,0 +1,160 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.VersionContentCache;
+
+/**
+ * @author piotrekhol
+ * 
+ */
+public class VersionContentCacheTest {
+
+    private static final byte[] CONTENT = "lorem ipsum dolor sit amet".getBytes();
+
+    private File directory;
+
+    private VersionContentCache cache;
+
+
+    @Before
+    public void setUp()
+            throws IOException {
+        directory = new File(FileUtils.getTempDirectory(), "version-content-cache-test-" + System.nanoTime());
+        cache = new VersionContentCache(directory, 1024 * 1024, 100);
+    }
+
+
+    @After
+    public void tearDown()
+            throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+
+    /**
+     * Test that a version read to the end is cached with its digest and can be read from an offset.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     * @throws NoSuchAlgorithmException
+     *             when MD5 is not supported
+     */
+    @Test
+    public void testFillAndGet()
+            throws IOException, NoSuchAlgorithmException {
+        Assert.assertNull(cache.get(1, 0));
+        InputStream in = cache.fill(1, CONTENT.length, new ByteArrayInputStream(CONTENT));
+        Assert.assertArrayEquals(CONTENT, IOUtils.toByteArray(in));
+        in.close();
+
+        in = cache.get(1, 6);
+        Assert.assertNotNull(in);
+        try {
+            Assert.assertEquals("ipsum dolor sit amet", IOUtils.toString(in));
+        } finally {
+            in.close();
+        }
+        Assert.assertTrue(cache.verify(1, MessageDigest.getInstance("MD5").digest(CONTENT)));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+
+    /**
+     * Test that a version whose digest differs from the one reported by dLibra is removed.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testVerify()
+            throws IOException {
+        InputStream in = cache.fill(1, CONTENT.length, new ByteArrayInputStream(CONTENT));
+        IOUtils.toByteArray(in);
+        in.close();
+        Assert.assertFalse(cache.verify(1, new byte[16]));
+        Assert.assertNull(cache.get(1, 0));
+        Assert.assertEquals(1, cache.getCorruptCount());
+    }
+
+
+    /**
+     * Test that a version whose stream ends before or after its recorded size is not cached.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testWrongSize()
+            throws IOException {
+        InputStream in = cache.fill(1, CONTENT.length + 1, new ByteArrayInputStream(CONTENT));
+        Assert.assertArrayEquals(CONTENT, IOUtils.toByteArray(in));
+        in.close();
+        Assert.assertNull("Truncated", cache.get(1, 0));
+
+        in = cache.fill(2, CONTENT.length - 1, new ByteArrayInputStream(CONTENT));
+        Assert.assertArrayEquals(CONTENT, IOUtils.toByteArray(in));
+        in.close();
+        Assert.assertNull("Too long", cache.get(2, 0));
+
+        InputStream original = new ByteArrayInputStream(CONTENT);
+        Assert.assertSame("Unknown size", original, cache.fill(3, -1, original));
+        Assert.assertEquals(2, cache.getCorruptCount());
+        Assert.assertEquals("No files left", 0, directory.listFiles().length);
+    }
+
+
+    /**
+     * Test that versions that are not read to the end, or are too large, are not cached.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testPartialAndLargeReads()
+            throws IOException {
+        InputStream in = cache.fill(1, CONTENT.length, new ByteArrayInputStream(CONTENT));
+        Assert.assertEquals(CONTENT[0], in.read());
+        in.close();
+        Assert.assertNull("Partially read", cache.get(1, 0));
+
+        byte[] large = new byte[101];
+        in = cache.fill(2, large.length, new ByteArrayInputStream(large));
+        Assert.assertArrayEquals(large, IOUtils.toByteArray(in));
+        in.close();
+        Assert.assertNull("Too large", cache.get(2, 0));
+        Assert.assertEquals("No files left", 0, directory.listFiles().length);
+    }
+
+
+    /**
+     * Test that a version is filled by one stream at a time.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testConcurrentFill()
+            throws IOException {
+        InputStream original = new ByteArrayInputStream(CONTENT);
+        InputStream first = cache.fill(1, CONTENT.length, new ByteArrayInputStream(CONTENT));
+        Assert.assertSame("Second fill", original, cache.fill(1, CONTENT.length, original));
+        IOUtils.toByteArray(first);
+        first.close();
+        Assert.assertEquals(1, cache.getStoredCount());
+    }
+
+}
@@ -0,0 +1,99 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.WorkspaceLookupCache;
+import pl.psnc.dlibra.metadata.DirectoryId;
+import pl.psnc.dlibra.metadata.PublicationId;
+
+/**
+ * WorkspaceLookupCache unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class WorkspaceLookupCacheTest {
+
+    /**
+     * Test that home directories are returned once stored and that their lookups are counted.
+     */
+    @Test
+    public void testHomeDirectory() {
+        WorkspaceLookupCache cache = new WorkspaceLookupCache(100, 60000);
+        Assert.assertNull(cache.getHomeDirectory("alice"));
+        cache.putHomeDirectory("alice", new DirectoryId(2L), cache.getHomeDirectoryStamp("alice"));
+        Assert.assertEquals(Long.valueOf(2), cache.getHomeDirectory("alice").getId());
+        Assert.assertEquals(1, cache.getHomeDirectoryHitCount());
+        Assert.assertEquals(1, cache.getAvoidedCallCount());
+    }
+
+
+    /**
+     * Test that a home directory loaded concurrently with a modification of the user is not stored.
+     */
+    @Test
+    public void testStaleHomeDirectory() {
+        WorkspaceLookupCache cache = new WorkspaceLookupCache(100, 60000);
+        long stamp = cache.getHomeDirectoryStamp("alice");
+        cache.invalidateUser("alice");
+        cache.putHomeDirectory("alice", new DirectoryId(2L), stamp);
+        Assert.assertNull(cache.getHomeDirectory("alice"));
+        stamp = cache.getHomeDirectoryStamp("alice");
+        cache.invalidateUser("bob");
+        cache.putHomeDirectory("alice", new DirectoryId(2L), stamp);
+        Assert.assertNotNull("Modification of another user is ignored", cache.getHomeDirectory("alice"));
+    }
+
+
+    /**
+     * Test that group publications are returned once stored and that the calls needed to find them are counted.
+     */
+    @Test
+    public void testGroup() {
+        WorkspaceLookupCache cache = new WorkspaceLookupCache(100, 60000);
+        DirectoryId directory = new DirectoryId(2L);
+        Assert.assertNull(cache.getGroup(directory, "ro"));
+        cache.putGroup(directory, "ro", new PublicationId(3L), 4, cache.getGroupStamp(directory, "ro"));
+        Assert.assertEquals(Long.valueOf(3), cache.getGroup(directory, "ro").getId());
+        cache.addGroup(directory, "ro2", new PublicationId(5L));
+        Assert.assertEquals(Long.valueOf(5), cache.getGroup(directory, "ro2").getId());
+        Assert.assertNull(cache.getGroup(new DirectoryId(7L), "ro"));
+        Assert.assertEquals(2, cache.getGroupHitCount());
+        Assert.assertEquals(5, cache.getAvoidedCallCount());
+    }
+
+
+    /**
+     * Test that invalidating a user removes the group publications found in their home directory only.
+     */
+    @Test
+    public void testInvalidateUser() {
+        WorkspaceLookupCache cache = new WorkspaceLookupCache(100, 60000);
+        DirectoryId home = new DirectoryId(2L);
+        DirectoryId other = new DirectoryId(20L);
+        cache.putHomeDirectory("alice", home, cache.getHomeDirectoryStamp("alice"));
+        cache.addGroup(home, "ro", new PublicationId(3L));
+        cache.addGroup(other, "ro", new PublicationId(4L));
+        cache.invalidateUser("alice");
+        Assert.assertNull(cache.getHomeDirectory("alice"));
+        Assert.assertNull(cache.getGroup(home, "ro"));
+        Assert.assertEquals(Long.valueOf(4), cache.getGroup(other, "ro").getId());
+    }
+
+
+    /**
+     * Test that a deleted group publication is removed.
+     */
+    @Test
+    public void testInvalidateGroup() {
+        WorkspaceLookupCache cache = new WorkspaceLookupCache(100, 60000);
+        DirectoryId directory = new DirectoryId(2L);
+        cache.addGroup(directory, "ro", new PublicationId(3L));
+        cache.addGroup(directory, "ro2", new PublicationId(5L));
+        cache.invalidateGroup(new PublicationId(3L));
+        Assert.assertNull(cache.getGroup(directory, "ro"));
+        Assert.assertEquals(Long.valueOf(5), cache.getGroup(directory, "ro2").getId());
+    }
+
+}
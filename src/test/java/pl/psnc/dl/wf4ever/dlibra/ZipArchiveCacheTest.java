@@ -0,0 +1,189 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.ZipArchiveCache;
+
+/**
+ * @author piotrekhol
+ * 
+ */
+public class ZipArchiveCacheTest {
+
+    private File directory;
+
+    private ZipArchiveCache cache;
+
+
+    @Before
+    public void setUp()
+            throws IOException {
+        directory = new File(FileUtils.getTempDirectory(), "zip-archive-cache-test-" + System.nanoTime());
+        cache = new ZipArchiveCache(directory, 1024 * 1024, 1000);
+    }
+
+
+    @After
+    public void tearDown()
+            throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+
+    /**
+     * Test that a committed archive is returned and that only one build of an archive can run at a time.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testBuildAndGet()
+            throws IOException {
+        Assert.assertNull(cache.get("1-a"));
+        ZipArchiveCache.Build build = cache.startBuild("1-a");
+        Assert.assertNotNull(build);
+        Assert.assertNull("Concurrent build", cache.startBuild("1-a"));
+        build.getOutputStream().write(new byte[] { 1, 2, 3 });
+        build.commit();
+
+        InputStream in = cache.get("1-a");
+        Assert.assertNotNull(in);
+        try {
+            Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.size());
+    }
+
+
+    /**
+     * Test that the archive can be read while it is built, without the build waiting for the reader, and that the
+     * reader fails if the build is aborted.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     * @throws InterruptedException
+     *             when interrupted while waiting for the writer
+     */
+    @Test
+    public void testFollow()
+            throws IOException, InterruptedException {
+        final ZipArchiveCache.Build build = cache.startBuild("1-a");
+        InputStream in = build.follow();
+        build.getOutputStream().write(new byte[] { 1, 2 });
+        Assert.assertEquals(1, in.read());
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    build.getOutputStream().write(new byte[] { 3 });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                build.commit();
+            }
+        };
+        writer.start();
+        writer.join();
+        try {
+            Assert.assertArrayEquals(new byte[] { 2, 3 }, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+        in = cache.get("1-a");
+        Assert.assertNotNull("Cached", in);
+        in.close();
+
+        ZipArchiveCache.Build aborted = cache.startBuild("1-b");
+        in = aborted.follow();
+        aborted.getOutputStream().write(new byte[] { 1 });
+        aborted.abort();
+        try {
+            Assert.assertEquals(1, in.read());
+            in.read();
+            Assert.fail("Aborted build");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Test that a client waiting for a build gives up after the given time.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testWaitTimeout()
+            throws IOException {
+        ZipArchiveCache.Build build = cache.startBuild("1-a");
+        long start = System.currentTimeMillis();
+        Assert.assertNull(cache.get("1-a", 50));
+        Assert.assertTrue(System.currentTimeMillis() - start < cache.getBuildTimeout());
+        Assert.assertEquals(1, cache.getWaitCount());
+        build.abort();
+    }
+
+
+    /**
+     * Test that aborted archives and archives invalidated while being built are not cached.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testAbortAndStaleBuild()
+            throws IOException {
+        ZipArchiveCache.Build build = cache.startBuild("1-a");
+        build.getOutputStream().write(new byte[] { 1 });
+        build.abort();
+        Assert.assertNull(cache.get("1-a"));
+
+        build = cache.startBuild("1-a");
+        build.getOutputStream().write(new byte[] { 1 });
+        cache.invalidate(1);
+        build.commit();
+        Assert.assertNull(cache.get("1-a"));
+        Assert.assertEquals("No files left", 0, directory.listFiles().length);
+    }
+
+
+    /**
+     * Test that invalidating an edition removes only the archives of that edition.
+     * 
+     * @throws IOException
+     *             when the cache directory cannot be accessed
+     */
+    @Test
+    public void testInvalidate()
+            throws IOException {
+        for (String key : new String[] { "1-a", "1-b", "12-a" }) {
+            ZipArchiveCache.Build build = cache.startBuild(key);
+            build.getOutputStream().write(new byte[] { 1 });
+            build.commit();
+        }
+        cache.invalidate(1);
+        Assert.assertNull(cache.get("1-a"));
+        Assert.assertNull(cache.get("1-b"));
+        InputStream in = cache.get("12-a");
+        Assert.assertNotNull(in);
+        in.close();
+        Assert.assertEquals(1, directory.listFiles().length);
+    }
+
+}
@@ -0,0 +1,88 @@
+package pl.psnc.dl.wf4ever.dlibra;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pl.psnc.dl.wf4ever.dlibra.helpers.ZipExportExecutor;
+
+/**
+ * ZipExportExecutor unit tests.
+ * 
+ * @author piotrekhol
+ * 
+ */
+public class ZipExportExecutorTest {
+
+    /**
+     * Test that a user can't have more exports than the limit and that users with no exports are forgotten.
+     * 
+     * @throws InterruptedException
+     *             when the test thread is interrupted
+     */
+    @Test
+    public void testUserLimit()
+            throws InterruptedException {
+        ZipExportExecutor executor = new ZipExportExecutor(4, 4, 2, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            }
+        };
+        executor.submit("alice", task);
+        executor.submit("alice", task);
+        try {
+            executor.submit("alice", task);
+            Assert.fail("Third export should be rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(1, executor.getUserCount());
+        release.countDown();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5000));
+        Assert.assertEquals(0, executor.getUserCount());
+        Assert.assertEquals(2, executor.getCompletedCount());
+        Assert.assertEquals(1, executor.getRejectedCount());
+        Assert.assertTrue("Prefetching threads are shut down", executor.getPrefetchExecutor().isShutdown());
+    }
+
+
+    /**
+     * Test that exports that throw an exception are counted as failed.
+     * 
+     * @throws InterruptedException
+     *             when the test thread is interrupted
+     */
+    @Test
+    public void testFailure()
+            throws InterruptedException {
+        ZipExportExecutor executor = new ZipExportExecutor(1, 1, 1, 0);
+        executor.submit("alice", new Runnable() {
+
+            @Override
+            public void run() {
+                throw new RuntimeException("Zip transmission failed");
+            }
+        });
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5000));
+        Assert.assertEquals(1, executor.getFailedCount());
+        Assert.assertEquals(0, executor.getCompletedCount());
+        Assert.assertEquals(0, executor.getUserCount());
+    }
+
+}